@@ -2,7 +2,9 @@ import configuration.ArgsException;
 import configuration.ArgsException.Type;
 import configuration.PeerConfiguration;
 import sslengine.SSLClient;
+import sslengine.SSLPeer;
 import utils.Logger;
+import utils.Logger.DebugType;
 
 import java.io.IOException;
 import java.net.InetAddress;
@@ -26,9 +28,13 @@ public class Main {
             public void run() {
             Logger.log("Closing SSL server and unbinding from registry...");
 
+            configuration.getThreadScheduler().shutdown();  // stops the periodic tasks (stabilize, pings, ...) that use the queue
             configuration.getServer().stop();
             SSLClient.queue.destroy();
-            configuration.getThreadScheduler().shutdown();
+            SSLClient.pool.destroy();
+            SSLClient.selector.destroy();
+            Logger.debug(DebugType.POOL, SSLPeer.buffers.toString() + ", " + SSLPeer.getHandshakeStats());
+            configuration.getHandlerPool().shutdown();
 
             try {
                 peer.writeState();
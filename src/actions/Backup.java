@@ -82,7 +82,7 @@ public class Backup implements Action {
                         continue;
                     case PROCESSEDYES:
                         ChordNode node = destinationNode;
-                        configuration.getThreadScheduler().execute(() -> {
+                        configuration.getHandlerPool().execute(() -> {
                             try {
                                 Result res = FileSender.sendFile(configuration, file, node);
                                 if (!res.success()) throw new Exception(res.getMessage());
@@ -5,45 +5,106 @@ import configuration.PeerConfiguration;
 import files.FileRepresentation;
 import messages.Message;
 import messages.MessageFactory;
+import server.DataBucket;
 import sslengine.SSLClient;
+import utils.Compression;
 import utils.Logger;
 import utils.Result;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
+
 public class FileSender {
     private static final String successMessage = "File sent successfully! Replication degree = ";
 
+    /* Amount of parts that can be sent before the receiver grants credits for more */
+    private static final int WINDOW = DataBucket.INITIAL_CREDITS;
+    private static final int PART_SIZE = 15000;
+    private static final long CREDIT_TIMEOUT = 30000;
+
+    /**
+     * Sends the parts of the file, each only when the receiver has granted credits for it, so that
+     * at most WINDOW parts are in memory or in flight at the same time (fewer if the receiver withholds credits).
+     * The receiver acknowledges each part with the credits it grants, which may be 0 while it's holding too much data.
+     * The parts are deflated if the file seems to be compressible (see Compression).
+     * Blocks until every part is acknowledged.
+     */
     public static Result sendFile(PeerConfiguration configuration, FileRepresentation file, ChordNode destinationNode) throws Exception {
         Logger.log("Sending the file (key=" + file.getFileKey() + ") up to " + destinationNode);
         Logger.debug(Logger.DebugType.FILETRANSFER, "Sending parts...");
 
+        int level = Compression.chooseLevel(file.getData());
+        Deflater deflater = level == Compression.NONE ? null : new Deflater(level);
+        try {
+            return sendParts(configuration, file, destinationNode, deflater);
+        } finally {
+            if (deflater != null) deflater.end();
+        }
+    }
+
+    private static Result sendParts(PeerConfiguration configuration, FileRepresentation file, ChordNode destinationNode, Deflater deflater) throws Exception {
+        Semaphore credits = new Semaphore(WINDOW), acknowledged = new Semaphore(0);
+        AtomicBoolean refused = new AtomicBoolean(false);
+        long sentBytes = 0;
+
         int totalAmount = 0, order = 0;
         while (totalAmount != file.getData().length)
         {
-            int left = file.getData().length - totalAmount;
+            if (!credits.tryAcquire(CREDIT_TIMEOUT, TimeUnit.MILLISECONDS))
+                return new Result(false, "Timed out waiting for credits to send the file to " + destinationNode);
+            if (refused.get())
+                return new Result(false, "Transfer of the file was refused by " + destinationNode);
 
-            int amount = Math.min(left, 15000);
-            byte[] part = new byte[amount];
+            int left = file.getData().length - totalAmount;
 
-            System.arraycopy(file.getData(), totalAmount, part, 0, amount);
+            int amount = Math.min(left, PART_SIZE);
+            ByteBuffer part = ByteBuffer.wrap(file.getData(), totalAmount, amount);  // the file's data isn't copied
 
             totalAmount += amount;
             order++;
 
-            int orderSaved = order;
-            configuration.getThreadScheduler().execute(() -> {
-                Message dataMessage = MessageFactory.getDataMessage(configuration.getPeerId(), file.getFileKey(), orderSaved, part);
-                try
-                {
-                    SSLClient.sendQueued(destinationNode, dataMessage, false);
-                }
-                catch (Exception e)
-                {
-                    Logger.error("sending file and waiting for data message reply", e, false);
-                }
-            });
+            byte[] compressed = deflater == null ? null : Compression.deflate(deflater, part);
+            Message dataMessage = compressed == null
+                    ? MessageFactory.getDataMessage(configuration.getPeerId(), file.getFileKey(), order, part)
+                    : MessageFactory.getCompressedDataMessage(configuration.getPeerId(), file.getFileKey(), order, compressed);
+            sentBytes += dataMessage.getBodyLength();
+
+            try
+            {
+                SSLClient.queue.push(destinationNode, dataMessage, (Message reply) -> {
+                    int granted = -1;
+                    try {
+                        if (reply != null && reply.getMessageType() == Message.MessageType.CREDIT) granted = reply.getCredits();
+                    } catch (Exception e) {
+                        Logger.error("reading credits of reply to data message", e, false);
+                    }
+
+                    if (granted < 0) {
+                        // the part was lost or refused
+                        refused.set(true);
+                        granted = 1;  // so that the sender wakes up to notice it
+                    }
+                    credits.release(granted);
+                    acknowledged.release();
+                });
+            }
+            catch (Exception e)
+            {
+                Logger.error("sending file and waiting for data message reply", e, false);
+                return new Result(false, "Couldn't send the file to " + destinationNode);
+            }
         }
 
-        Logger.debug(Logger.DebugType.FILETRANSFER, "Sent all parts!");
+        // waits for the last parts to be acknowledged
+        if (!acknowledged.tryAcquire(order, CREDIT_TIMEOUT, TimeUnit.MILLISECONDS))
+            return new Result(false, "Timed out waiting for the last parts of the file to be received by " + destinationNode);
+        if (refused.get())
+            return new Result(false, "Transfer of the file was refused by " + destinationNode);
+
+        Logger.debug(Logger.DebugType.FILETRANSFER, "Sent all parts! (" + sentBytes + " of " + file.getData().length + " bytes)");
 
         return new Result(true, successMessage);
     }
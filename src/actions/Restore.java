@@ -11,6 +11,7 @@ import state.MyFileInfo;
 import utils.Logger;
 import utils.Result;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.CompletableFuture;
 
 
@@ -34,10 +35,10 @@ public class Restore {
             Message message = MessageFactory.getGetfileMessage(configuration.getPeerId(), fileKey, configuration.getChord().getSelf());
             Logger.debug(Logger.DebugType.RESTORE, "Sending " + message);
 
-            configuration.getDataBucket().add(file.getFileKey(), new FileBucket((int) Math.ceil(file.getByteAmount() / 15000.), (byte[] data) -> {
+            configuration.getDataBucket().add(file.getFileKey(), new FileBucket((int) Math.ceil(file.getByteAmount() / 15000.), (ByteBuffer[] parts) -> {
                 try {
-                    new FileManager(configuration.getRootDir()).write(file.getFileName(), data);
-                    if (data == null) throw new Exception("Couldn't receive file data!");
+                    if (parts == null) throw new Exception("Couldn't receive file data!");
+                    new FileManager(configuration.getRootDir()).write(file.getFileName(), parts);
                     future.complete(new Result(true, "File '" + file.getFileName() + "' restored successfully!"));
                 } catch (Exception e) {
                     Logger.error("writing restored file to filesystem", e, true);
@@ -48,6 +49,10 @@ public class Restore {
             int count = 0;
             while (true) {
                 Message reply = SSLClient.sendQueued(destinationNode, message, true).get();
+                if (reply == null) {
+                    future.complete(new Result(false, "Peer " + destinationNode + " didn't answer the request for '" + file.getFileName() + "' :("));
+                    return;
+                }
                 if (reply.getMessageType() == Message.MessageType.REDIRECT) destinationNode = reply.getNode();
                 else if (reply.getMessageType() == Message.MessageType.PROCESSEDYES) break;
                 else if (reply.getMessageType() == Message.MessageType.PROCESSEDNO) {
@@ -0,0 +1,179 @@
+package benchmark;
+
+import chord.Chord;
+import chord.ChordNode;
+import chord.IterativeLookup;
+import messages.Message;
+import messages.MessageFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares recursive and iterative (alpha-parallel) lookups in a simulated ring, where a fraction of the nodes
+ * is slow to answer. The iterative lookups are made by the peer's IterativeLookup; each simulated node answers
+ * a NEXTHOP like Chord.nextHop, after its response time.
+ *
+ * Usage: java benchmark.LookupBenchmark [nodes] [lookups] [slow_fraction] [slow_ms] [hop_timeout_ms]
+ */
+public class LookupBenchmark {
+    private static final int SUCCESSORS = 4, MIN_RESPONSE = 2, MAX_RESPONSE = 10;
+    private static final int CONCURRENT_LOOKUPS = 20;
+
+    private static final ScheduledExecutorService network = Executors.newScheduledThreadPool(2, (Runnable runnable) -> {
+        Thread thread = new Thread(runnable, "network");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static class Node {
+        final ChordNode node;
+        final int responseTime;
+        final List<Node> fingers = new ArrayList<>();
+        Node successor;
+
+        Node(int id, int port, int responseTime) {
+            this.node = new ChordNode(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), id);
+            this.responseTime = responseTime;
+        }
+
+        int getId() {
+            return node.getId();
+        }
+
+        Node closestPreceding(int key) {
+            for (int i = fingers.size() - 1; i >= 0; i--)
+                if (Chord.isBetween(fingers.get(i).getId(), getId(), key, false)) return fingers.get(i);
+            return this;
+        }
+    }
+
+    private final Node[] ring;
+    private final int[] ids;
+    private final Map<Integer, Node> byId = new HashMap<>();
+    private final long hopTimeout;
+
+    private LookupBenchmark(int nodes, double slowFraction, int slowTime, long hopTimeout, Random random) {
+        this.hopTimeout = hopTimeout;
+
+        ids = random.ints().distinct().limit(nodes).sorted().toArray();
+        ring = new Node[nodes];
+        for (int i = 0; i < nodes; i++) {
+            int responseTime = MIN_RESPONSE + random.nextInt(MAX_RESPONSE - MIN_RESPONSE + 1);
+            if (random.nextDouble() < slowFraction) responseTime += slowTime;
+            ring[i] = new Node(ids[i], 10000 + i, responseTime);
+            byId.put(ids[i], ring[i]);
+        }
+
+        for (int i = 0; i < nodes; i++) {
+            ring[i].successor = ring[(i + 1) % nodes];
+            for (int bit = 0; bit < 32; bit++) ring[i].fingers.add(successorOf(ring[i].getId() + (1 << bit)));
+        }
+    }
+
+    private Node successorOf(int key) {
+        int index = Arrays.binarySearch(ids, key);
+        if (index < 0) index = -index - 1;
+        return ring[index % ring.length];
+    }
+
+    private static CompletableFuture<Void> after(long millis) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        network.schedule(() -> future.complete(null), millis, TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    /**
+     * The lookup is forwarded from hop to hop, each one answering only after the next ones
+     */
+    private CompletableFuture<Node> recursive(Node at, int key) {
+        if (Chord.isBetween(key, at.getId(), at.successor.getId(), true)) return CompletableFuture.completedFuture(at.successor);
+
+        Node next = at.closestPreceding(key);
+        if (next == at) return CompletableFuture.completedFuture(at);
+        return after(next.responseTime).thenCompose((Void v) -> recursive(next, key));
+    }
+
+    private CompletableFuture<Node> iterative(Node origin, int key, int alpha) {
+        if (Chord.isBetween(key, origin.getId(), origin.successor.getId(), true)) return CompletableFuture.completedFuture(origin.successor);
+
+        List<ChordNode> known = new ArrayList<>();
+        for (Node finger : origin.fingers) known.add(finger.node);
+        int index = Arrays.asList(ring).indexOf(origin);
+        for (int i = 1; i <= SUCCESSORS; i++) known.add(ring[(index + i) % ring.length].node);
+
+        IterativeLookup lookup = new IterativeLookup(key, origin.node, known, alpha, hopTimeout, (ChordNode chordNode) -> {
+            Node node = byId.get(chordNode.getId());
+            return after(node.responseTime).thenApply((Void v) -> nextHop(node, key));
+        }, network, network);
+        return lookup.start().thenApply((ChordNode node) -> byId.get(node.getId()));
+    }
+
+    private static Message nextHop(Node node, int key) {
+        if (Chord.isBetween(key, node.getId(), node.successor.getId(), true))
+            return MessageFactory.getLookupResponseMessage(node.getId(), key, node.successor.node);
+
+        Node next = node.closestPreceding(key);
+        if (next == node) return MessageFactory.getLookupResponseMessage(node.getId(), key, node.node);
+        return MessageFactory.getRedirectMessage(node.getId(), next.node);
+    }
+
+    private interface Lookup {
+        CompletableFuture<Node> run(Node origin, int key);
+    }
+
+    private void measure(String name, Lookup lookup, int lookups, Random random) throws Exception {
+        long[] latencies = new long[lookups];
+        AtomicInteger failed = new AtomicInteger(0), wrong = new AtomicInteger(0);
+        Semaphore running = new Semaphore(CONCURRENT_LOOKUPS);
+
+        for (int i = 0; i < lookups; i++) {
+            int index = i;
+            Node origin = ring[random.nextInt(ring.length)];
+            int key = random.nextInt();
+
+            running.acquire();
+            long start = System.nanoTime();
+            lookup.run(origin, key).whenComplete((Node found, Throwable e) -> {
+                latencies[index] = (System.nanoTime() - start) / 1000000;
+                if (e != null) failed.incrementAndGet();
+                else if (found != successorOf(key)) wrong.incrementAndGet();
+                running.release();
+            });
+        }
+        running.acquire(CONCURRENT_LOOKUPS);
+
+        Arrays.sort(latencies);
+        System.out.printf("%-14s p50=%4dms p90=%4dms p99=%4dms max=%4dms failed=%d wrong=%d%n", name,
+                latencies[lookups / 2], latencies[lookups * 9 / 10], latencies[lookups * 99 / 100], latencies[lookups - 1], failed.get(), wrong.get());
+    }
+
+    public static void main(String[] args) throws Exception {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        double slowFraction = args.length > 2 ? Double.parseDouble(args[2]) : 0.05;
+        int slowTime = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+        long hopTimeout = args.length > 4 ? Long.parseLong(args[4]) : 50;
+
+        System.out.println("nodes=" + nodes + " lookups=" + lookups + " slow=" + slowFraction + " (+" + slowTime + "ms) hop_timeout=" + hopTimeout + "ms");
+
+        LookupBenchmark benchmark = new LookupBenchmark(nodes, slowFraction, slowTime, hopTimeout, new Random(42));
+        benchmark.measure("recursive", benchmark::recursive, lookups, new Random(1));
+        for (int alpha = 1; alpha <= 3; alpha++) {
+            int a = alpha;
+            benchmark.measure("iterative a=" + alpha, (Node origin, int key) -> benchmark.iterative(origin, key, a), lookups, new Random(1));
+        }
+    }
+}
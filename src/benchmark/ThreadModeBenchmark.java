@@ -0,0 +1,73 @@
+package benchmark;
+
+import utils.Threads;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Compares the fixed platform thread pools with virtual threads on a workload shaped like the peer's handlers:
+ * each request waits for a simulated network round trip and for a nested request in the same pool,
+ * like a recursive Chord lookup that is forwarded from peer to peer.
+ *
+ * Usage: java benchmark.ThreadModeBenchmark [requests] [depth] [latency_ms] [pool_size]
+ * (virtual threads are only measured if the JVM supports them, which means Java 21 or newer: on the Java 17 the project
+ * targets, only the platform pool is measured)
+ */
+public class ThreadModeBenchmark {
+    private static final long TIMEOUT = 20000;
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int depth = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int latency = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        int poolSize = args.length > 3 ? Integer.parseInt(args[3]) : 25;
+
+        System.out.println("requests=" + requests + " depth=" + depth + " latency=" + latency + "ms pool=" + poolSize);
+
+        run("platform", Threads.newPlatformPool("benchmark", poolSize), requests, depth, latency);
+
+        if (Threads.virtualThreadsAvailable()) run("virtual", Threads.newVirtualPool(), requests, depth, latency);
+        else System.out.println("virtual: not supported by this JVM (" + System.getProperty("java.version") + ")");
+    }
+
+    private static void run(String name, ExecutorService pool, int requests, int depth, int latency) throws Exception {
+        String result;
+        try {
+            measure(pool, Math.min(requests, 100), depth, latency);  // warm up
+
+            long start = System.nanoTime();
+            measure(pool, requests, depth, latency);
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            result = String.format("%.2fs (%.0f requests/s)", elapsed, requests / elapsed);
+        } catch (TimeoutException e) {
+            result = "didn't finish in " + TIMEOUT / 1000 + "s (the pool was exhausted by blocked requests)";
+        }
+        System.out.println(name + ": " + result);
+
+        pool.shutdownNow();
+    }
+
+    private static void measure(ExecutorService pool, int requests, int depth, int latency) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+
+        List<Future<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < requests; i++) futures.add(pool.submit(() -> lookup(pool, depth, latency)));
+
+        for (Future<Integer> future : futures) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) throw new TimeoutException();
+            future.get(remaining, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static int lookup(ExecutorService pool, int hops, int latency) throws Exception {
+        Thread.sleep(latency);
+        if (hops == 0) return 0;
+        return pool.submit(() -> lookup(pool, hops - 1, latency)).get() + 1;
+    }
+}
@@ -3,8 +3,8 @@ package chord;
 import configuration.PeerConfiguration;
 import messages.Message;
 import messages.MessageFactory;
+import messages.NodeList;
 import sslengine.SSLClient;
-import sslengine.SSLPeer;
 import utils.Logger;
 
 import java.io.File;
@@ -16,20 +16,49 @@ import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 
 public class Chord {
-    private final List<ChordNode> fingerTable = new ArrayList<>();
     private final PeerConfiguration configuration;
     private final ChordNode self;
     private final int m;
     private int nextFingerToFix = -1;
-    private ChordNode predecessor, successor;
-    private List<ChordNode> successorsSuccessors = new ArrayList<>();
+
+    /* Fingers are fixed every MIN_FIX_DELAY while the ring changes, and less often (up to MAX_FIX_DELAY)
+       for each pass over the finger table that finds nothing new */
+    private static final long MIN_FIX_DELAY = 50, MAX_FIX_DELAY = 1000;
+    private volatile long fixDelay = MIN_FIX_DELAY;
+    private boolean fingersChanged = false;
+
+    /* Fingers, successor's successors, predecessor and successor. Each change publishes a new snapshot,
+       so that the threads that route lookups never see one that is half updated */
+    private final AtomicReference<RoutingTable> routing = new AtomicReference<>(new RoutingTable());
+
+    /* The predecessor and successor are pinged every PING_INTERVAL; a peer is only considered down when the
+       failure detector's suspicion of it reaches the threshold (which can be set with -DphiThreshold=<value>) */
+    private static final long PING_INTERVAL = 1000, ACCEPTABLE_PAUSE = 2000;
+    private static final int LOOKUP_TRIES = 3;
+
+    /* Amount of successor's successors kept (-DsuccessorListLength=<r>), refreshed by each stabilization */
+    private static final int SUCCESSOR_LIST_LENGTH = Integer.parseInt(System.getProperty("successorListLength", "5"));
+
+    /* Lookups are recursive (each hop forwards them), unless the peer is started with -Dlookup=iterative,
+       in which case this peer asks each hop itself, lookupAlpha (-DlookupAlpha=<n>) of them at a time */
+    private static final boolean ITERATIVE_LOOKUP = "iterative".equalsIgnoreCase(System.getProperty("lookup", "recursive"));
+    private static final int LOOKUP_ALPHA = Integer.parseInt(System.getProperty("lookupAlpha", "3"));
+    private static final long HOP_TIMEOUT = 1000;
+    /* Results of lookups are kept for lookupCacheTtl ms (-DlookupCacheTtl=<ms>, 0 disables the cache) */
+    private static final int LOOKUP_CACHE_CAPACITY = 1024;
+    private final LookupCache lookupCache = new LookupCache(LOOKUP_CACHE_CAPACITY, Long.parseLong(System.getProperty("lookupCacheTtl", "5000")));
+    private final FailureDetector detector = new FailureDetector(Double.parseDouble(System.getProperty("phiThreshold", "8")), PING_INTERVAL, ACCEPTABLE_PAUSE);
 
     /**
      * Instantiates the chord algorithm for this peer, making him join the P2P network
@@ -53,20 +82,13 @@ public class Chord {
 
         if (preexistingNode == null) this.create();
         else {
-            if (turnoff) this.successor = new ChordNode(preexistingNode, 111);   // just for debug
+            if (turnoff) setSuccessor(new ChordNode(preexistingNode, 111));   // just for debug
             else this.join(preexistingNode);
         }
         
         if (!turnoff) // just for debug
         {
-            configuration.getThreadScheduler().scheduleWithFixedDelay(() -> {
-                try {
-                    updateFingers();
-                } catch(Exception e) {
-                    Logger.error(e, true);
-                    Logger.debug(self, "Got exception in update fingers! " + e.getMessage());
-                }
-            }, configuration.getRandomDelay(1000, 100), 250, TimeUnit.MILLISECONDS);
+            scheduleFingerFix(configuration.getRandomDelay(1000, 100));
 
             configuration.getThreadScheduler().scheduleWithFixedDelay(() -> {
                 try {
@@ -86,9 +108,7 @@ public class Chord {
 //                }
 //            }, configuration.getRandomDelay(1000, 100), 250, TimeUnit.MILLISECONDS);
 
-            configuration.getThreadScheduler().scheduleWithFixedDelay(this::updateSuccessorsSuccessors, configuration.getRandomDelay(2000, 1500), 1000, TimeUnit.MILLISECONDS);
-
-            configuration.getThreadScheduler().scheduleWithFixedDelay(this::checkPredecessor, 500, 1000, TimeUnit.MILLISECONDS);
+            configuration.getThreadScheduler().scheduleWithFixedDelay(this::pingNeighbours, 500, PING_INTERVAL, TimeUnit.MILLISECONDS);
         }
     }
 
@@ -142,11 +162,30 @@ public class Chord {
     }
     
     public ChordNode getSuccessor() {
-        return successor;
+        return routing.get().getSuccessor();
     }
 
     public ChordNode getPredecessor() {
-        return predecessor;
+        return routing.get().getPredecessor();
+    }
+
+    /**
+     * @return the current snapshot of the routing table, which never changes
+     */
+    public RoutingTable getRoutingTable() {
+        return routing.get();
+    }
+
+    /**
+     * Publishes the table resulting from the update, which can be applied more than once if other threads change it at the same time
+     * @return the table that was replaced
+     */
+    private RoutingTable update(UnaryOperator<RoutingTable> update) {
+        return routing.getAndUpdate(update);
+    }
+
+    private void setSuccessor(ChordNode node) {
+        update((RoutingTable table) -> table.withSuccessor(node));
     }
 
     public ChordNode getSelf() {
@@ -156,17 +195,67 @@ public class Chord {
     private void create() {
         Logger.debug(self, "I am GOD: " + self);
 
-        this.predecessor = null;
-        successor = self;
+        update((RoutingTable table) -> table.withPredecessor(null).withSuccessor(self));
     }
 
     private void join(InetSocketAddress preexistingNode) throws Exception {
-        this.predecessor = null;
-
         // send LOOKUP message to the preexisting node
         // and set the successor to the value of the return
-        successor = lookup(preexistingNode, self.getId()).get();
+        ChordNode successor = lookup(preexistingNode, self.getId()).get();
+        update((RoutingTable table) -> table.withPredecessor(null).withSuccessor(successor));
         Logger.debug(self, "Joining chord ring. My successor is " + successor);
+
+        copyFingers(successor);
+    }
+
+    /**
+     * Starts with the fingers that follow from the nodes the successor knows, instead of routing through successors
+     * until each finger is fixed. They are close to this node's own (the successor is its neighbour), and are then fixed as usual.
+     */
+    private void copyFingers(ChordNode successor) {
+        if (successor.getId() == getId()) return;
+
+        List<ChordNode> known;
+        try {
+            Message reply = SSLClient.sendQueued(successor, MessageFactory.getGetFingersMessage(getId()), true).get();
+            if (reply == null || reply.getMessageType() != Message.MessageType.FINGERS) {
+                Logger.debug(self, "Successor " + successor + " didn't send its fingers");
+                return;
+            }
+            known = NodeList.decode(reply.getBodyBuffer());
+        } catch (Exception e) {
+            Logger.error("getting the fingers of " + successor, e, false);
+            return;
+        }
+        known.add(successor);
+        known.add(self);
+
+        // each finger is the first known node at or after its start, the best guess of the start's successor
+        List<ChordNode> fingers = new ArrayList<>();
+        for (int i = 0; i < this.m; i++) {
+            int start = getFingerTableIndexId(i);
+            ChordNode closest = null;
+            for (ChordNode node : known)
+                if (closest == null || Integer.toUnsignedLong(node.getId() - start) < Integer.toUnsignedLong(closest.getId() - start)) closest = node;
+            fingers.add(closest);
+        }
+
+        update((RoutingTable table) -> table.getFingers().isEmpty() ? table.withFingers(fingers) : table);
+        Logger.debug(self, "Copied fingers from the " + known.size() + " nodes known by " + successor);
+    }
+
+    /**
+     * @return the nodes this one knows: itself, its successor, the successor's successors and its fingers
+     */
+    public List<ChordNode> getKnownNodes() {
+        RoutingTable table = routing.get();
+        Map<Integer, ChordNode> nodes = new LinkedHashMap<>();
+        nodes.put(getId(), self);
+        if (table.getSuccessor() != null) nodes.putIfAbsent(table.getSuccessor().getId(), table.getSuccessor());
+        for (ChordNode node : table.getSuccessorsSuccessors()) nodes.putIfAbsent(node.getId(), node);
+        for (ChordNode node : table.getFingers())
+            if (node != null) nodes.putIfAbsent(node.getId(), node);
+        return new ArrayList<>(nodes.values());
     }
 
     public int getFingerTableIndexId(int idx) {
@@ -207,66 +296,147 @@ public class Chord {
         int originalFingerToFix = nextFingerToFix;
         nextFingerToFix = nextFingerToFix + 1;
         if (nextFingerToFix > this.m - 1) nextFingerToFix = 0;
+        if (nextFingerToFix == 0) endFixPass();
 
-        ChordNode fingerValue = lookup(getFingerTableIndexId(nextFingerToFix)).get();
+        int first = nextFingerToFix, start = getFingerTableIndexId(first);
+        ChordNode fingerValue = lookup(start, false).get();
         if (fingerValue == null) {
             Logger.error("Lookup returned null in updateFingers!");
             nextFingerToFix = originalFingerToFix;
             return;
         }
-        
-        try 
+
+        // there is no node in [start, fingerValue), so the next fingers that start there are also fingerValue
+        int last = first;
+        while (last + 1 < this.m && isBetween(getFingerTableIndexId(last + 1), start - 1, fingerValue.getId(), true)) last++;
+
+        int end = last;
+        RoutingTable previous;
+        try
         {
-            fingerTable.get(nextFingerToFix);  // if already exists
-            fingerTable.set(nextFingerToFix, fingerValue);
-        } 
-        catch (IndexOutOfBoundsException e) 
+            // sets them if they already exist, or adds them if the table is filled up to this point
+            previous = update((RoutingTable table) -> {
+                for (int i = first; i <= end; i++) table = table.withFinger(i, fingerValue);
+                return table;
+            });
+        }
+        catch (IndexOutOfBoundsException e)
         {
-            try 
-            {
-                if (fingerTable.size() == 0) fingerTable.add(fingerValue);
-                else
-                {
-                    fingerTable.get(nextFingerToFix - 1); // if it's filled up to this point
-                    fingerTable.add(fingerValue);
-                }
-            } 
-            catch (IndexOutOfBoundsException e1) 
-            {
-                nextFingerToFix--; // To try to fix this one again
-                throw new Exception("updateFingers: finger table was not valid.");
-            }
+            nextFingerToFix--; // To try to fix this one again
+            throw new Exception("updateFingers: finger table was not valid.");
         }
+        nextFingerToFix = last;
+
+        for (int i = first; i <= last; i++)
+            if (i >= previous.getFingers().size() || previous.getFingers().get(i) == null || previous.getFingers().get(i).getId() != fingerValue.getId())
+                fingersChanged = true;
 //        Logger.debug(self, "Update fingers ended");
     }
 
+    /**
+     * Adapts the time between finger fixes to what the last pass over the finger table found
+     */
+    private void endFixPass() {
+        fixDelay = fingersChanged ? MIN_FIX_DELAY : Math.min(fixDelay * 2, MAX_FIX_DELAY);
+        fingersChanged = false;
+    }
+
+    /**
+     * Called when a node arrives or leaves next to this one, so that the fingers catch up quickly
+     */
+    private void ringChanged() {
+        fixDelay = MIN_FIX_DELAY;
+    }
+
+    private void scheduleFingerFix(long delay) {
+        if (configuration.getThreadScheduler().isShutdown()) return;
+
+        configuration.getThreadScheduler().schedule(() -> {
+            try {
+                updateFingers();
+            } catch(Exception e) {
+                Logger.error(e, true);
+                Logger.debug(self, "Got exception in update fingers! " + e.getMessage());
+            }
+            scheduleFingerFix(fixDelay);
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
     /**
      * Daniel
-     * Verifies if the predecessor of the node's successor is still the node itself
+     * Verifies if the predecessor of the node's successor is still the node itself.
+     * A single STABILIZE notifies the successor and gets its predecessor and successor list, from which the
+     * successor's successors are refreshed.
      */
     public void stabilize() throws Exception {
         Logger.debug(self, "Stabilize");
 
+        ChordNode successor = getSuccessor();
         if (successor == null || successor.getId() == getId()) return;
 
-        Logger.debug(self, "Sending GETPREDECESSOR to " + successor);
-        Message reply = SSLClient.sendQueued(successor, MessageFactory.getGetPredecessorMessage(self.getId()), true).get();
+        Logger.debug(self, "Sending STABILIZE to " + successor);
+        Message reply = SSLClient.sendQueued(successor, MessageFactory.getStabilizeMessage(getId(), self), true).get();
+        if (reply == null || reply.getMessageType() != Message.MessageType.STABILIZERESPONSE) {
+            Logger.debug(self, "Successor " + successor + " didn't answer STABILIZE");
+            return;
+        }
 
+        List<ChordNode> successors = new ArrayList<>();
         try {
-            ChordNode predecessorOfSuccessor = reply.getNode();  // if it has no predecessor it will throw exception
-            Logger.debug(self, "Got PREDECESSOR = " + predecessorOfSuccessor);
-            
-            if (isBetween(predecessorOfSuccessor, self, successor, false)) {
-                successor = predecessorOfSuccessor;
+            for (ChordNode node : NodeList.decode(reply.getBodyBuffer())) {
+                if (node.getId() == getId() || successors.size() == SUCCESSOR_LIST_LENGTH) break;  // went around the ring
+                successors.add(node);
             }
+        } catch (Exception e) {
+            Logger.error("reading successor list of " + successor, e, false);
+        }
+
+        ChordNode predecessorOfSuccessor = null;
+        try {
+            predecessorOfSuccessor = reply.getNode();  // if it has no predecessor it will throw exception
+            Logger.debug(self, "Got PREDECESSOR = " + predecessorOfSuccessor);
         } catch (Exception e) {
             Logger.debug(self, "Didn't have predecessor yet!");
         }
 
-        notifyPredecessor(successor);
+        if (isBetween(predecessorOfSuccessor, self, successor, false)) {
+            // a node joined between this one and the successor: the successor goes to the front of the list
+            successors.add(0, successor);
+            if (successors.size() > SUCCESSOR_LIST_LENGTH) successors.remove(successors.size() - 1);
+
+            // only replaces the successor that was asked, in case it changed meanwhile
+            ChordNode asked = successor, newSuccessor = predecessorOfSuccessor;
+            RoutingTable previous = update((RoutingTable table) -> table.getSuccessor() == asked ? table.withSuccessor(newSuccessor).withSuccessorsSuccessors(successors) : table);
+            if (previous.getSuccessor() == asked) {
+                lookupCache.invalidate(newSuccessor);
+                ringChanged();
+                notifyPredecessor(newSuccessor);
+            }
+        }
+        else {
+            ChordNode asked = successor;
+            update((RoutingTable table) -> table.getSuccessor() == asked ? table.withSuccessorsSuccessors(successors) : table);
+        }
         Logger.debug(self, "Stabilize ended");
     }
 
+    /**
+     * Answers the STABILIZE of the node, after being notified by it
+     * @return STABILIZERESPONSE with this node's predecessor and its successor and successor's successors
+     */
+    public Message stabilizeResponse(ChordNode node) {
+        notify(node);
+
+        RoutingTable table = routing.get();
+        List<ChordNode> successors = new ArrayList<>();
+        if (table.getSuccessor() != null) successors.add(table.getSuccessor());
+        for (ChordNode successor : table.getSuccessorsSuccessors()) {
+            if (successors.size() == SUCCESSOR_LIST_LENGTH) break;
+            successors.add(successor);
+        }
+        return MessageFactory.getStabilizeResponseMessage(getId(), table.getPredecessor(), successors);
+    }
+
     /** 
      * Notifies the successor, letting him know that this node is its predecessor
      * @param successor the node's successor
@@ -282,7 +452,9 @@ public class Chord {
      * @param node the successor
      */
     public void updateSuccessor(ChordNode node) {
-        if (successor == self) successor = node;
+        if (update((RoutingTable table) -> table.getSuccessor() == self ? table.withSuccessor(node) : table).getSuccessor() != self) return;
+        lookupCache.invalidate(node);
+        ringChanged();
     }
 
     /**
@@ -292,26 +464,67 @@ public class Chord {
     public void notify(ChordNode newPredecessor) {
         Logger.debug(self, "Received NOTIFY" + newPredecessor);
         // if doesn't have predecessor or the current predecessor is no longer valid
-        if (predecessor == null || isBetween(newPredecessor.getId(), predecessor.getId(), self.getId(), false)) 
+        UnaryOperator<RoutingTable> change = (RoutingTable table) -> {
+            ChordNode predecessor = table.getPredecessor();
+            if (predecessor == null || isBetween(newPredecessor.getId(), predecessor.getId(), self.getId(), false))
+                return table.withPredecessor(newPredecessor);
+            return table;
+        };
+        RoutingTable previous = update(change);
+        if (change.apply(previous) != previous)
         {
             Logger.debug(self, "Changed predecessor to " + newPredecessor.toString());
-            predecessor = newPredecessor;
+            lookupCache.invalidate(newPredecessor);
+            ringChanged();
         }
 
         updateSuccessor(newPredecessor);
     }
 
+    /**
+     * Pings the predecessor and the successor, and checks whether they have failed
+     */
+    public void pingNeighbours() {
+        RoutingTable table = routing.get();
+        ping(table.getPredecessor());
+        ping(table.getSuccessor());
+
+        checkPredecessor();
+
+        ChordNode successor = getSuccessor();
+        if (successor != null && successor.getId() != getId() && detector.isSuspected(successor)) peerIsDown(successor);
+    }
+
+    private void ping(ChordNode node) {
+        if (node == null || node.getId() == getId()) return;
+        detector.watch(node);
+
+        // pushing may have to connect to the node, which mustn't hold up the periodic tasks if it's slow or down
+        configuration.getHandlerPool().execute(() -> {
+            long start = System.nanoTime();
+            try {
+                SSLClient.queue.push(node, MessageFactory.getPingMessage(getId()), (Message reply) -> {
+                    if (reply != null && reply.getMessageType() == Message.MessageType.PONG)
+                        detector.heartbeat(node, (System.nanoTime() - start) / 1000000);
+                });
+            } catch (Exception e) {
+                Logger.error("pinging " + node, e, false);
+            }
+        });
+    }
+
     /**
      * Checks whether predecessor has failed
      */
     public void checkPredecessor() {
+        ChordNode predecessor = getPredecessor();
         if (predecessor == null) return;
         Logger.debug(self, "Checking predecessor...");
         
-        if (!SSLPeer.isAlive(predecessor.getInetSocketAddress()))
+        if (detector.isSuspected(predecessor))
         {
-            predecessor = null;
-            Logger.debug(self, "Predecessor was not alive!");
+            Logger.debug(self, "Predecessor was not alive! (phi=" + detector.phi(predecessor) + ")");
+            peerIsDown(predecessor);  // also drops its connections and the cached intervals it owned
         }
         else Logger.debug(self, "Predecessor was alive!");
     }
@@ -320,6 +533,11 @@ public class Chord {
      * Gets the closest preceding node to the key k that this node knows of
      */
     public ChordNode closestPrecedingNode(int k) {
+        return closestPrecedingNode(routing.get(), k);
+    }
+
+    private ChordNode closestPrecedingNode(RoutingTable table, int k) {
+        List<ChordNode> fingerTable = table.getFingers();
         for (int i = this.m - 1; i >= 0; i--) 
         {
             if (i > fingerTable.size() - 1) continue;
@@ -335,143 +553,172 @@ public class Chord {
     }
 
     /**
-     * Finds who holds or will hold the value of a given key.
-     * @throws Exception
+     * Finds who holds or will hold the value of a given key, possibly from the lookup cache.
+     * No thread waits for the other peers: the future is completed when the reply arrives.
      */
-    public Future<ChordNode> lookup(int k) throws Exception {
+    public CompletableFuture<ChordNode> lookup(int k) {
+        return lookup(k, true);
+    }
 
-        if (fingerTable.size() == 1 || isBetween(k, self, successor, true)) 
-        {
-            CompletableFuture<ChordNode> future = new CompletableFuture<>();
-            future.complete(successor);
-            return future;
-        }
+    /**
+     * @param useCache whether a cached owner may be the answer. Finger maintenance and the lookups of other peers
+     *                 don't use it: a node that joined far from this one only reaches it through them, so a cached
+     *                 answer would keep hiding it until the cache expired (their results still refresh the cache).
+     */
+    public CompletableFuture<ChordNode> lookup(int k, boolean useCache) {
+        RoutingTable table = routing.get();
+        ChordNode successor = table.getSuccessor();
+
+        if (table.getFingers().size() == 1 || isBetween(k, self, successor, true)) 
+            return CompletableFuture.completedFuture(successor);
 
-        ChordNode closestPreceding = this.closestPrecedingNode(k);
+        ChordNode closestPreceding = this.closestPrecedingNode(table, k);
         if (closestPreceding.getId() == getId())
-        {
-            CompletableFuture<ChordNode> future = new CompletableFuture<>();
-            future.complete(self);
-            return future;
+            return CompletableFuture.completedFuture(self);
+
+        ChordNode cached = useCache ? lookupCache.get(k) : null;
+        if (cached != null) {
+            Logger.debug(self, "Key " + k + " is in a cached interval of " + cached);
+            return CompletableFuture.completedFuture(cached);
         }
 
-        Logger.debug(self, "Looking up key " + k + " to peer " + closestPreceding.getId());
-        return lookup(closestPreceding, k);
+        CompletableFuture<ChordNode> result;
+        if (ITERATIVE_LOOKUP) result = iterativeLookup(table, k);
+        else {
+            Logger.debug(self, "Looking up key " + k + " to peer " + closestPreceding.getId());
+            result = lookup(closestPreceding, k);
+        }
+        return result.whenComplete((ChordNode node, Throwable e) -> {
+            if (e == null) lookupCache.put(k, node);
+        });
     }
 
-    public Future<ChordNode> lookup(ChordNode node, int k, int id) throws Exception {
-        Logger.debug(self, "Using " + node.getInetSocketAddress().getAddress().getHostAddress() + ":" + node.getInetSocketAddress().getPort() + " to LOOKUP!");
+    /**
+     * Finds who holds or will hold the value of a given key, asking each hop directly (see IterativeLookup)
+     */
+    public CompletableFuture<ChordNode> iterativeLookup(int k) {
+        return iterativeLookup(routing.get(), k);
+    }
 
-        CompletableFuture<ChordNode> future = new CompletableFuture<>();
-        Message message = MessageFactory.getLookupMessage(id, k);
+    private CompletableFuture<ChordNode> iterativeLookup(RoutingTable table, int k) {
+        List<ChordNode> known = new ArrayList<>(table.getFingers());
+        known.add(table.getSuccessor());
+        known.addAll(table.getSuccessorsSuccessors());
 
-        int ntries = 0;
-        while ((ntries < 3 || id != 1234) && !future.isDone()) { // only sends exception when the id is 1234
-            Logger.debug(self, "Sending LOOKUP of key " + k + " to " + node.getInetSocketAddress());
+        Message message = MessageFactory.getNextHopMessage(getId(), k);
+        IterativeLookup lookup = new IterativeLookup(k, self, known, LOOKUP_ALPHA, HOP_TIMEOUT,
+                (ChordNode node) -> SSLClient.sendQueued(node, message, true), configuration.getHandlerPool(), configuration.getThreadScheduler());
 
-            Future<Message> f = SSLClient.sendQueued(node, message, true);
-            try {
-                Message reply = f.get();
-                future.complete(reply == null ? null : reply.getNode());
-            } catch (ExecutionException e) {
-                ntries++;
-            }
-        }
+        Logger.debug(self, "Looking up key " + k + " iteratively");
+        return lookup.start().whenComplete((ChordNode node, Throwable e) ->
+                Logger.debug(self, "Iterative lookup of key " + k + " took " + lookup.getQueries() + " queries"));
+    }
 
-        if (!future.isDone()) future.completeExceptionally(new Exception("Couldn't complete lookup of key '" + k + "' to peer " + node.getInetSocketAddress() + "."));
+    /**
+     * Answers a step of an iterative lookup
+     * @return LOOKUPRESPONSE with the node responsible for the key if this node knows it, or else REDIRECT to the closest preceding node it knows
+     */
+    public Message nextHop(int k) {
+        RoutingTable table = routing.get();
+        if (table.getFingers().size() == 1 || isBetween(k, self, table.getSuccessor(), true))
+            return MessageFactory.getLookupResponseMessage(getId(), k, table.getSuccessor());
+
+        ChordNode closestPreceding = this.closestPrecedingNode(table, k);
+        if (closestPreceding.getId() == getId())
+            return MessageFactory.getLookupResponseMessage(getId(), k, self);
 
-        return future;
+        return MessageFactory.getRedirectMessage(getId(), closestPreceding);
     }
 
-    public Future<ChordNode> lookup(InetSocketAddress address, int k, int id) throws Exception {
-        Logger.debug(self, "Using " + address.getAddress().getHostAddress() + ":" + address.getPort() + " to LOOKUP!");
+    public CompletableFuture<ChordNode> lookup(ChordNode node, int k, int id) {
+        Logger.debug(self, "Using " + node.getInetSocketAddress().getAddress().getHostAddress() + ":" + node.getInetSocketAddress().getPort() + " to LOOKUP!");
 
-        CompletableFuture<ChordNode> future = new CompletableFuture<>();
         Message message = MessageFactory.getLookupMessage(id, k);
+        return lookup(() -> SSLClient.sendQueued(node, message, true), k, node.getInetSocketAddress(), 1);
+    }
 
-        int ntries = 0;
-        while ((ntries < 3 || id != 1234) && !future.isDone()) { // only sends exception when the id is 1234
-            Logger.debug(self, "Sending LOOKUP of key " + k + " to " + address);
-
-            Future<Message> f = SSLClient.sendQueued(address, message, true);
-            try {
-                Message reply = f.get();
-                future.complete(reply == null ? null : reply.getNode());
-            } catch (ExecutionException e) {
-                ntries++;
-            }
-        }
-
-        if (!future.isDone()) future.completeExceptionally(new Exception("Couldn't complete lookup of key '" + k + "' to peer " + address + "."));
+    public CompletableFuture<ChordNode> lookup(InetSocketAddress address, int k, int id) {
+        Logger.debug(self, "Using " + address.getAddress().getHostAddress() + ":" + address.getPort() + " to LOOKUP!");
 
-        return future;
+        Message message = MessageFactory.getLookupMessage(id, k);
+        return lookup(() -> SSLClient.sendQueued(address, message, true), k, address, 1);
     }
 
-    public Future<ChordNode> lookup(ChordNode node, int k) throws Exception {
+    public CompletableFuture<ChordNode> lookup(ChordNode node, int k) {
         return lookup(node, k, self.getId());
     }
 
-    public Future<ChordNode> lookup(InetSocketAddress node, int k) throws Exception {
+    public CompletableFuture<ChordNode> lookup(InetSocketAddress node, int k) {
         return lookup(node, k, self.getId());
     }
 
-    private void removeFromFingerTable(ChordNode node) {
-        for (int i = 0; i < fingerTable.size(); i++) {
-            if (fingerTable.get(i) != null && fingerTable.get(i).getId() == node.getId()) fingerTable.set(i, null);
-        }
-    }
+    /**
+     * Sends the LOOKUP, sending it again (up to LOOKUP_TRIES times) if there is no reply.
+     * The reply times out in the client, so each try ends without a thread waiting for it.
+     * A PROCESSEDNO means the peer couldn't complete the lookup itself (after its own tries), so it isn't sent again.
+     * @param send sends the LOOKUP, returning the future reply (null if there was none)
+     */
+    private CompletableFuture<ChordNode> lookup(Supplier<CompletableFuture<Message>> send, int k, InetSocketAddress address, int attempt) {
+        Logger.debug(self, "Sending LOOKUP of key " + k + " to " + address + " (try " + attempt + ")");
 
-    public void updateSuccessorsSuccessors() {
-        if (successor == null) return;
-        List<ChordNode> newSuccessorsSuccessors = new ArrayList<>();
-        for (int i = -1; i < 4; i++)
-        {
-            ChordNode node = i == -1 ? successor : newSuccessorsSuccessors.get(i);
-            try {
-                Message reply = SSLClient.sendQueued(node, MessageFactory.getGetSuccessorMessage(getId()), true).get();
-                if (reply == null || reply.getNode().getId() == getId()) break;
-                newSuccessorsSuccessors.add(reply.getNode());
-            }
-            catch(Exception e)
-            {
-                Logger.error("updating successor's successors (couldn't get successor of " + node +  ")", e, false);
-                break;
+        // the next try may have to connect, which can't be done in the thread that completed the reply
+        return send.get().handleAsync((Message reply, Throwable e) -> {
+            if (e == null && reply != null && reply.getMessageType() == Message.MessageType.PROCESSEDNO)
+                return CompletableFuture.<ChordNode>failedFuture(new Exception("Peer " + address + " couldn't complete the lookup of key '" + k + "'."));
+
+            if (e == null && reply != null) {
+                try {
+                    return CompletableFuture.completedFuture(reply.getNode());
+                } catch (Exception invalid) {
+                    e = invalid;
+                }
             }
-        }
-        synchronized(this) {
-            successorsSuccessors = newSuccessorsSuccessors;
-        }
+
+            if (attempt < LOOKUP_TRIES) return lookup(send, k, address, attempt + 1);
+            return CompletableFuture.<ChordNode>failedFuture(new Exception("Couldn't complete lookup of key '" + k + "' to peer " + address + "."
+                    + (e == null ? "" : " (" + e.getMessage() + ")")));
+        }, configuration.getHandlerPool()).thenCompose(Function.identity());
     }
 
+    /**
+     * Called when a peer couldn't be reached. It is only removed if the failure detector also suspects it
+     * (peers that aren't being watched, like fingers, are always suspected).
+     */
     public void peerIsDown(ChordNode node) {
-        Logger.debug(self, "In peerIsDown (" + node + ")");
-        if (successor != null && successor.getId() == node.getId())
-        {
-            synchronized(this) {
-                if (successorsSuccessors.size() != 0)
-                {
-                    successor = successorsSuccessors.get(0);
-                    successorsSuccessors.remove(successorsSuccessors.get(0));
-                }
-                else successor = self;
-            }
+        double phi = detector.phi(node);
+        if (phi < detector.getThreshold()) {
+            Logger.debug(self, "Peer " + node + " couldn't be reached, but isn't suspected yet (phi=" + phi + ")");
+            return;
         }
-        removeFromFingerTable(node);
 
-        if (predecessor != null && predecessor.getId() == node.getId()) predecessor = null;
+        Logger.debug(self, "In peerIsDown (" + node + ")");
+        SSLClient.pool.removePeer(node.getInetSocketAddress());
+        detector.remove(node);
+        lookupCache.invalidate(node);
+
+        // the next of the successor's successors takes its place if it was the successor
+        RoutingTable table = routing.updateAndGet((RoutingTable current) -> current.without(node, self));
+        lookupCache.invalidate(table.getSuccessor());
+        ringChanged();
+    }
+
+    private String describeHealth(ChordNode node) {
+        if (node == null || node.getId() == getId()) return "";
+        return String.format(" (rtt=%.1fms, phi=%.2f)", detector.getRtt(node), detector.phi(node));
     }
 
     public String toString() {
         StringBuilder builder = new StringBuilder();
         builder.append("\n----------------------------------------------\n");
         builder.append("%% Finger table of node ").append(getId()).append(" %%\n");
-        builder.append("Predecessor = ").append(predecessor).append("\n");
-        builder.append("Successor = ").append(successor).append("\n");
+        RoutingTable table = routing.get();
+        List<ChordNode> fingerTable = table.getFingers();
+        builder.append("Predecessor = ").append(table.getPredecessor()).append(describeHealth(table.getPredecessor())).append("\n");
+        builder.append("Successor = ").append(table.getSuccessor()).append(describeHealth(table.getSuccessor())).append("\n");
         builder.append("Successor's successors = ");
-        synchronized(this) {
-            for (ChordNode node : successorsSuccessors) builder.append(node.getId()).append(" | ");
-        }
+        for (ChordNode node : table.getSuccessorsSuccessors()) builder.append(node.getId()).append(" | ");
         builder.append("\n");
+        builder.append("Cached lookup intervals = ").append(lookupCache.size()).append("\n");
 
         for (int i = 0; i < fingerTable.size(); i++) {
             ChordNode node = fingerTable.get(i);
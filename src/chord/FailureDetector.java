@@ -0,0 +1,124 @@
+package chord;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Phi accrual failure detector: instead of deciding that a peer is down as soon as a check fails, it keeps the
+ * intervals between the peer's heartbeats (replies to PINGs) and computes how suspicious the current silence is.
+ * phi = -log10(probability of a heartbeat arriving this late), so phi = 8 means a 1 in 10^8 chance of being wrong.
+ */
+public class FailureDetector {
+    private static final int WINDOW = 100;
+    private static final double MIN_STD_DEVIATION = 100;  // ms, so that very regular heartbeats don't make phi explode
+
+    private final Map<Integer, History> histories = new ConcurrentHashMap<>();
+    private final double threshold;
+    private final long expectedInterval, acceptablePause;
+
+    /**
+     * @param threshold phi above which a peer is considered down
+     * @param expectedInterval time (ms) between heartbeats, used until the peer's intervals are known
+     * @param acceptablePause time (ms) of silence that is tolerated beyond the usual interval (garbage collection, bursts, ...)
+     */
+    public FailureDetector(double threshold, long expectedInterval, long acceptablePause) {
+        this.threshold = threshold;
+        this.expectedInterval = expectedInterval;
+        this.acceptablePause = acceptablePause;
+    }
+
+    /**
+     * Starts watching the node, which is assumed to be alive now (so that it isn't suspected before its first heartbeat)
+     */
+    public void watch(ChordNode node) {
+        histories.computeIfAbsent(node.getId(), (Integer id) -> new History(System.currentTimeMillis()));
+    }
+
+    /**
+     * Registers a heartbeat of the node
+     * @param rtt round trip time of the PING that was answered
+     */
+    public void heartbeat(ChordNode node, long rtt) {
+        long now = System.currentTimeMillis();
+        histories.computeIfAbsent(node.getId(), (Integer id) -> new History(now)).heartbeat(now, rtt);
+    }
+
+    /**
+     * @return the suspicion level of the node, or infinity if it isn't being watched
+     */
+    public double phi(ChordNode node) {
+        History history = histories.get(node.getId());
+        if (history == null) return Double.POSITIVE_INFINITY;
+        return history.phi(System.currentTimeMillis());
+    }
+
+    public boolean isSuspected(ChordNode node) {
+        return phi(node) >= threshold;
+    }
+
+    /**
+     * @return average round trip time to the node (ms), or -1 if unknown
+     */
+    public double getRtt(ChordNode node) {
+        History history = histories.get(node.getId());
+        return history == null ? -1 : history.getRtt();
+    }
+
+    public void remove(ChordNode node) {
+        histories.remove(node.getId());
+    }
+
+    public double getThreshold() {
+        return threshold;
+    }
+
+    private class History {
+        private final Deque<Long> intervals = new ArrayDeque<>();
+        private long lastHeartbeat, sum = 0, squaredSum = 0;
+        private double rtt = -1;
+
+        private History(long start) {
+            // there's no interval yet: starts with the expected one (with some deviation)
+            add(expectedInterval - expectedInterval / 4);
+            add(expectedInterval + expectedInterval / 4);
+            lastHeartbeat = start;
+        }
+
+        private synchronized void heartbeat(long now, long rttSample) {
+            if (now > lastHeartbeat) add(now - lastHeartbeat);
+            lastHeartbeat = now;
+
+            rtt = rtt < 0 ? rttSample : 0.8 * rtt + 0.2 * rttSample;
+        }
+
+        private void add(long interval) {
+            intervals.addLast(interval);
+            sum += interval;
+            squaredSum += interval * interval;
+
+            if (intervals.size() > WINDOW) {
+                long removed = intervals.removeFirst();
+                sum -= removed;
+                squaredSum -= removed * removed;
+            }
+        }
+
+        private synchronized double phi(long now) {
+            double mean = (double) sum / intervals.size() + acceptablePause;
+            double variance = (double) squaredSum / intervals.size() - Math.pow((double) sum / intervals.size(), 2);
+            double deviation = Math.max(Math.sqrt(Math.max(variance, 0)), MIN_STD_DEVIATION);
+
+            // logistic approximation of the normal distribution's cumulative function
+            double y = (now - lastHeartbeat - mean) / deviation;
+            double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+            if (now - lastHeartbeat > mean) return -Math.log10(e / (1 + e));
+            return -Math.log10(1 - 1 / (1 + e));
+        }
+
+        private synchronized double getRtt() {
+            return rtt;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package chord;
+
+import messages.Message;
+import messages.Message.MessageType;
+import utils.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Lookup of a key in which this node asks each hop itself (with NEXTHOP messages), instead of the hops forwarding it.
+ * Up to alpha hops are asked at the same time, always the known ones that are closest to the key, so a slow
+ * or failed hop doesn't stall the lookup: a hop that doesn't answer within the hop timeout stops counting
+ * towards alpha (but its answer is still accepted if it comes later).
+ * The first peer that knows who is responsible for the key ends it.
+ */
+public class IterativeLookup {
+    private final int key;
+    private final int alpha;
+    private final long hopTimeout;
+    private final Function<ChordNode, CompletableFuture<Message>> query;
+    private final Executor executor;
+    private final ScheduledExecutorService timer;
+    private final CompletableFuture<ChordNode> result = new CompletableFuture<>();
+
+    private final TreeSet<ChordNode> candidates;
+    private final Set<Integer> seen = new HashSet<>();
+    private final long startDistance;
+    private int inFlight = 0, pending = 0, queries = 0;
+
+    /**
+     * @param self node where the lookup starts
+     * @param known nodes known by self (the ones that don't precede the key are ignored)
+     * @param alpha maximum amount of hops that are asked at the same time
+     * @param hopTimeout time (ms) after which another hop is asked if one doesn't answer
+     * @param query sends a NEXTHOP of the key to a node, returning the future reply (null if there was none)
+     * @param executor where the next hops are asked (which may block connecting to them), never the thread that completed a reply
+     * @param timer where the hop timeouts are scheduled
+     */
+    public IterativeLookup(int key, ChordNode self, Collection<ChordNode> known, int alpha, long hopTimeout,
+                           Function<ChordNode, CompletableFuture<Message>> query, Executor executor, ScheduledExecutorService timer) {
+        this.key = key;
+        this.alpha = alpha;
+        this.hopTimeout = hopTimeout;
+        this.query = query;
+        this.executor = executor;
+        this.timer = timer;
+        this.startDistance = distance(self.getId());
+        this.candidates = new TreeSet<>(Comparator.comparingLong((ChordNode node) -> distance(node.getId())).thenComparingInt(ChordNode::getId));
+
+        seen.add(self.getId());
+        for (ChordNode node : known) addCandidate(node);
+    }
+
+    /**
+     * @return clockwise distance from the id to the key
+     */
+    private long distance(int id) {
+        return Integer.toUnsignedLong(key - id);
+    }
+
+    /**
+     * Only nodes that precede the key and are closer to it than the start are asked, so that each answer is progress
+     */
+    private void addCandidate(ChordNode node) {
+        if (node == null || seen.contains(node.getId())) return;
+        long distance = distance(node.getId());
+        if (distance == 0 || distance >= startDistance) return;
+
+        seen.add(node.getId());
+        candidates.add(node);
+    }
+
+    public CompletableFuture<ChordNode> start() {
+        send(next());
+        return result;
+    }
+
+    /**
+     * A hop that was asked, which counts towards alpha until it answers or is late
+     */
+    private static class Query {
+        private boolean holdsSlot = true;
+        private ScheduledFuture<?> timeout = null;
+    }
+
+    /**
+     * @return the candidates that should be asked now (holding the lock), so that they are asked outside of it
+     */
+    private synchronized List<ChordNode> next() {
+        List<ChordNode> nodes = new ArrayList<>();
+        if (result.isDone()) return nodes;
+
+        while (inFlight < alpha && !candidates.isEmpty()) {
+            nodes.add(candidates.pollFirst());
+            inFlight++;
+            pending++;
+            queries++;
+        }
+        if (pending == 0) result.completeExceptionally(new Exception("No peer could answer the lookup of key '" + key + "' (asked " + queries + ")"));
+        return nodes;
+    }
+
+    private void send(List<ChordNode> nodes) {
+        for (ChordNode node : nodes) {
+            Query sent = new Query();
+            CompletableFuture<Message> reply;
+            try {
+                reply = query.apply(node);
+            } catch (Exception e) {
+                reply = CompletableFuture.failedFuture(e);
+            }
+            sent.timeout = timer.schedule(() -> executor.execute(() -> send(onLate(sent))), hopTimeout, TimeUnit.MILLISECONDS);
+            reply.whenCompleteAsync((Message message, Throwable e) -> {
+                sent.timeout.cancel(false);
+                send(onReply(sent, message));
+            }, executor);
+        }
+    }
+
+    private void freeSlot(Query sent) {
+        if (!sent.holdsSlot) return;
+        sent.holdsSlot = false;
+        inFlight--;
+    }
+
+    private synchronized List<ChordNode> onLate(Query sent) {
+        if (!sent.holdsSlot) return new ArrayList<>();
+        freeSlot(sent);
+        return next();
+    }
+
+    private synchronized List<ChordNode> onReply(Query sent, Message reply) {
+        freeSlot(sent);
+        pending--;
+        if (!result.isDone() && reply != null) {
+            try {
+                if (reply.getMessageType() == MessageType.LOOKUPRESPONSE) result.complete(reply.getNode());
+                else if (reply.getMessageType() == MessageType.REDIRECT) addCandidate(reply.getNode());
+            } catch (Exception e) {
+                Logger.error("reading reply to NEXTHOP of key " + key, e, false);
+            }
+        }
+        return next();
+    }
+
+    public synchronized int getQueries() {
+        return queries;
+    }
+}
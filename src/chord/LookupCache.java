@@ -0,0 +1,111 @@
+package chord;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Cache of lookup results, so that keys close to one that was just looked up are resolved without going to the network.
+ * Each entry is an interval of keys (lower, owner] that is known to belong to the owner: if the owner of key k is n,
+ * there is no node in [k, n), so every key in that range also belongs to n. The interval of an owner grows as more of
+ * its keys are looked up.
+ * Entries expire after a TTL, and are invalidated when this peer learns of a change in the ring around them.
+ */
+public class LookupCache {
+    private final TreeMap<Integer, Entry> entries = new TreeMap<>();  // by the owner's id
+    private final int capacity;
+    private final long ttl;
+
+    private static class Entry {
+        private final int lower;  // exclusive
+        private final ChordNode owner;
+        private final long expiration;
+
+        private Entry(int lower, ChordNode owner, long expiration) {
+            this.lower = lower;
+            this.owner = owner;
+            this.expiration = expiration;
+        }
+
+        private boolean contains(int key) {
+            return Chord.isBetween(key, lower, owner.getId(), true);
+        }
+    }
+
+    /**
+     * @param capacity maximum amount of intervals kept
+     * @param ttl time (ms) during which a result is trusted, 0 to disable the cache
+     */
+    public LookupCache(int capacity, long ttl) {
+        this.capacity = capacity;
+        this.ttl = ttl;
+    }
+
+    /**
+     * @return the owner of the key, or null if it isn't in a (valid) cached interval
+     */
+    public synchronized ChordNode get(int key) {
+        if (ttl <= 0 || entries.isEmpty()) return null;
+
+        // the only interval that can contain the key is the one of the first owner at or after it
+        Map.Entry<Integer, Entry> candidate = entries.ceilingEntry(key);
+        if (candidate == null) candidate = entries.firstEntry();
+
+        Entry entry = candidate.getValue();
+        if (entry.expiration <= System.currentTimeMillis()) {
+            entries.remove(candidate.getKey());
+            return null;
+        }
+        return entry.contains(key) ? entry.owner : null;
+    }
+
+    /**
+     * Registers that the owner of the key is the given node
+     */
+    public synchronized void put(int key, ChordNode owner) {
+        if (ttl <= 0 || owner == null) return;
+        long now = System.currentTimeMillis();
+
+        int lower = key - 1;
+        long expiration = now + ttl;
+        Entry existing = entries.get(owner.getId());
+        if (existing != null && existing.expiration > now) {
+            if (existing.contains(key)) return;
+            // the key is before the known interval, which is extended up to it (and trusted for as long as the older part)
+            if (Chord.isBetween(existing.lower, lower, owner.getId(), false)) expiration = existing.expiration;
+        }
+
+        if (existing == null && entries.size() >= capacity) evict(now);
+        entries.put(owner.getId(), new Entry(lower, owner, expiration));
+    }
+
+    /**
+     * Removes the expired intervals, or else the one that expires first
+     */
+    private void evict(long now) {
+        entries.values().removeIf((Entry entry) -> entry.expiration <= now);
+        if (entries.size() < capacity) return;
+
+        Map.Entry<Integer, Entry> oldest = null;
+        for (Map.Entry<Integer, Entry> entry : entries.entrySet())
+            if (oldest == null || entry.getValue().expiration < oldest.getValue().expiration) oldest = entry;
+        entries.remove(oldest.getKey());
+    }
+
+    /**
+     * Forgets what the node's arrival or departure makes wrong: the intervals it owns and the ones that contain its id
+     */
+    public synchronized void invalidate(ChordNode node) {
+        if (node == null) return;
+
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.owner.getId() == node.getId() || entry.contains(node.getId())) iterator.remove();
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
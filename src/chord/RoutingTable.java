@@ -0,0 +1,90 @@
+package chord;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable snapshot of what a node knows of the ring: its predecessor, successor, the successor's successors and
+ * the finger table. Chord publishes a new snapshot on each change, so lookups read a consistent one without locking.
+ */
+public class RoutingTable {
+    private final ChordNode predecessor, successor;
+    private final List<ChordNode> successorsSuccessors;
+    private final List<ChordNode> fingers;  // may have null entries (fingers that failed and weren't fixed yet)
+
+    public RoutingTable() {
+        this(null, null, Collections.emptyList(), Collections.emptyList());
+    }
+
+    private RoutingTable(ChordNode predecessor, ChordNode successor, List<ChordNode> successorsSuccessors, List<ChordNode> fingers) {
+        this.predecessor = predecessor;
+        this.successor = successor;
+        this.successorsSuccessors = successorsSuccessors;
+        this.fingers = fingers;
+    }
+
+    public ChordNode getPredecessor() {
+        return predecessor;
+    }
+
+    public ChordNode getSuccessor() {
+        return successor;
+    }
+
+    public List<ChordNode> getSuccessorsSuccessors() {
+        return successorsSuccessors;
+    }
+
+    public List<ChordNode> getFingers() {
+        return fingers;
+    }
+
+    public RoutingTable withPredecessor(ChordNode node) {
+        return new RoutingTable(node, successor, successorsSuccessors, fingers);
+    }
+
+    public RoutingTable withSuccessor(ChordNode node) {
+        return new RoutingTable(predecessor, node, successorsSuccessors, fingers);
+    }
+
+    public RoutingTable withSuccessorsSuccessors(List<ChordNode> nodes) {
+        return new RoutingTable(predecessor, successor, Collections.unmodifiableList(new ArrayList<>(nodes)), fingers);
+    }
+
+    /**
+     * @param index of an existing finger, or the one after the last
+     * @throws IndexOutOfBoundsException if the fingers before the index aren't filled up yet
+     */
+    public RoutingTable withFinger(int index, ChordNode node) {
+        if (index > fingers.size()) throw new IndexOutOfBoundsException("Finger " + index + " of " + fingers.size());
+
+        List<ChordNode> newFingers = new ArrayList<>(fingers);
+        if (index == fingers.size()) newFingers.add(node);
+        else newFingers.set(index, node);
+        return new RoutingTable(predecessor, successor, successorsSuccessors, Collections.unmodifiableList(newFingers));
+    }
+
+    public RoutingTable withFingers(List<ChordNode> nodes) {
+        return new RoutingTable(predecessor, successor, successorsSuccessors, Collections.unmodifiableList(new ArrayList<>(nodes)));
+    }
+
+    /**
+     * @return the table without the node: the fingers that pointed to it become null, and if it was the successor,
+     * the next of the successor's successors (or else self) takes its place
+     */
+    public RoutingTable without(ChordNode node, ChordNode self) {
+        ChordNode newPredecessor = predecessor != null && predecessor.getId() == node.getId() ? null : predecessor;
+
+        List<ChordNode> newSuccessors = new ArrayList<>(successorsSuccessors);
+        ChordNode newSuccessor = successor;
+        if (successor != null && successor.getId() == node.getId())
+            newSuccessor = newSuccessors.isEmpty() ? self : newSuccessors.remove(0);
+
+        List<ChordNode> newFingers = new ArrayList<>(fingers);
+        for (int i = 0; i < newFingers.size(); i++)
+            if (newFingers.get(i) != null && newFingers.get(i).getId() == node.getId()) newFingers.set(i, null);
+
+        return new RoutingTable(newPredecessor, newSuccessor, Collections.unmodifiableList(newSuccessors), Collections.unmodifiableList(newFingers));
+    }
+}
@@ -10,8 +10,10 @@ import sslengine.ServerThread;
 import state.PeerState;
 import utils.IPFinder;
 import utils.Logger;
+import utils.Threads;
 
 import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadLocalRandom;
 
@@ -19,6 +21,7 @@ public class PeerConfiguration {
     private final String serviceAccessPoint;
     private final PeerState state;
     private final ScheduledThreadPoolExecutor threadScheduler;
+    private final ExecutorService handlerPool;
     private final SSLServer server;
     private final Chord chord;
     private final DataBucket dataBucket;
@@ -32,6 +35,7 @@ public class PeerConfiguration {
         
         this.dataBucket = new DataBucket();
         this.threadScheduler = new ScheduledThreadPoolExecutor(30);
+        this.handlerPool = Threads.newHandlerPool("peer-handler", 30);
 
         String ip = IPFinder.find().getHostAddress();
         this.server = new SSLServer(ip, serverPort, new ServerRouter(this));
@@ -66,6 +70,13 @@ public class PeerConfiguration {
         return threadScheduler;
     }
 
+    /**
+     * @return pool for one-off tasks that may block (virtual threads if the peer was started with -Dthreads=virtual)
+     */
+    public ExecutorService getHandlerPool() {
+        return handlerPool;
+    }
+
     public int getRandomDelay(int bound, int offset) {
         return ThreadLocalRandom.current().nextInt(bound) + offset;
     }
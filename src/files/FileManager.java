@@ -9,6 +9,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 
@@ -50,8 +51,24 @@ public class FileManager {
         channel.force(true);
     }
 
-    public void writeBackedupFile(int fileId, byte[] data) throws IOException {
-        write("f" + fileId, data);
+    /**
+     * Writes the parts, in order, as the whole file with gathering writes (so that they aren't copied into a single array)
+     * @return size of the file
+     */
+    public long write(String file, ByteBuffer[] parts) throws IOException {
+        long size = 0;
+        for (ByteBuffer part : parts) size += part.remaining();
+
+        try (FileChannel channel = FileChannel.open(Paths.get(this.rootDir + "/" + file), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long written = 0;
+            while (written < size) written += channel.write(parts);
+            channel.force(true);
+        }
+        return size;
+    }
+
+    public long writeBackedupFile(int fileId, ByteBuffer[] parts) throws IOException {
+        return write("f" + fileId, parts);
     }
 
     public byte[] read(String file) throws IOException, ArgsException {
@@ -0,0 +1,73 @@
+package messages;
+
+import configuration.ArgsException;
+import configuration.ArgsException.Type;
+import messages.Message.MessageType;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Operation on a file's key carried by a BATCH message. In the body of the message, each operation is
+ * its type (1 byte) and the file's key (4 bytes).
+ */
+public class BatchOperation {
+    private static final int SIZE = 1 + 4;
+
+    private final MessageType type;
+    private final int fileKey;
+
+    /**
+     * @param type ADDPOINTER, REMOVEPOINTER or DELETE
+     */
+    public BatchOperation(MessageType type, int fileKey) {
+        if (!isBatchable(type)) throw new IllegalArgumentException(type + " can't be part of a batch");
+        this.type = type;
+        this.fileKey = fileKey;
+    }
+
+    public static boolean isBatchable(MessageType type) {
+        return type == MessageType.ADDPOINTER || type == MessageType.REMOVEPOINTER || type == MessageType.DELETE;
+    }
+
+    public MessageType getType() {
+        return type;
+    }
+
+    public int getFileKey() {
+        return fileKey;
+    }
+
+    public static byte[] encode(List<BatchOperation> operations) {
+        ByteBuffer buffer = ByteBuffer.allocate(operations.size() * SIZE);
+        for (BatchOperation operation : operations) {
+            buffer.put((byte) operation.type.ordinal());
+            buffer.putInt(operation.fileKey);
+        }
+        return buffer.array();
+    }
+
+    public static List<BatchOperation> decode(ByteBuffer body) throws ArgsException {
+        if (body.remaining() % SIZE != 0) throw new ArgsException(Type.INVALID_MESSAGE);
+
+        MessageType[] types = MessageType.values();
+        List<BatchOperation> operations = new ArrayList<>(body.remaining() / SIZE);
+        try {
+            while (body.hasRemaining()) {
+                int type = body.get() & 0xFF;
+                if (type >= types.length || !isBatchable(types[type])) throw new ArgsException(Type.INVALID_MESSAGE);
+                operations.add(new BatchOperation(types[type], body.getInt()));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new ArgsException(Type.INVALID_MESSAGE);
+        }
+        return operations;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + fileKey;
+    }
+}
@@ -5,6 +5,7 @@ import chord.ChordNode;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -16,8 +17,11 @@ public class Message {
     private short replicationDeg = -1, alreadyPerceivedDegree = -1;
     private int order = -1;
     private int byteAmount = -1;
+    private int credits = -1;
+    private int requestId = 0;   // identifies a request and its reply in a connection (0 if no reply is expected)
+    private boolean compressed = false;   // the body was deflated
 
-    private byte[] body = null;
+    private ByteBuffer body = null;   // may be a slice of the received frame or of the file being sent, so it's never modified
 
     public enum MessageType {
         PUTFILE,
@@ -35,9 +39,30 @@ public class Message {
         REDIRECT,
         GETSUCCESSOR,
         REMOVEPOINTER,
-        ADDPOINTER
+        ADDPOINTER,
+        CREDIT,   // acknowledges a DATA message, granting credits to send more parts of the file
+        PING,
+        PONG,
+        BATCH,   // several ADDPOINTER, REMOVEPOINTER and DELETE operations (see BatchOperation), applied at once
+        NEXTHOP,   // step of an iterative lookup: answered with LOOKUPRESPONSE if the peer knows the key's successor, or REDIRECT to a closer peer
+        STABILIZE,   // NOTIFY that is answered with a STABILIZERESPONSE
+        STABILIZERESPONSE,   // the peer's predecessor (if it has one) and, in the body, its successor list (see NodeList)
+        GETFINGERS,
+        FINGERS   // the nodes a peer knows (itself, its fingers and successors), in the body
     }
 
+    public static final String COMPRESSED_FLAG = "DEFLATE";
+
+    /* Messages are encoded in binary: version (1 byte), type (1 byte), flags of the optional fields (1 byte),
+       request id and sender id (4 bytes each), the optional fields that are present (fixed width, in the order
+       of the flags) and the body. A node is encoded as in NodeList.
+       Text headers are still understood, and are sent instead when the peer is started with -Dcodec=text */
+    public static final byte VERSION = 1;   // text messages start with the type's name, so they can't be confused
+    static final int HAS_FILE_KEY = 1, HAS_ORDER = 1 << 1, HAS_REPLICATION_DEG = 1 << 2, HAS_BYTE_AMOUNT = 1 << 3,
+            HAS_CREDITS = 1 << 4, HAS_NODE = 1 << 5, IS_COMPRESSED = 1 << 6, HAS_BODY = 1 << 7;
+    static final int FIXED_HEADER_SIZE = 3 + 4 + 4;
+    private static final boolean textCodec = "text".equalsIgnoreCase(System.getProperty("codec", "binary"));
+
     private static final String CRLF = new String(new byte[] { 0xD, 0xA });
 
     public Message(int senderId, Integer fileKey) {
@@ -78,7 +103,7 @@ public class Message {
 
     public Message(MessageType messageType, int senderId, int fileKey, int replicationDegree, byte[] body) {
         this(messageType, senderId, fileKey, replicationDegree);
-        this.body = body;
+        setBody(body);
     }
 
     public Message(MessageType messageType, int senderId, int fileKey, int nParts, int replicationDegree) {
@@ -97,6 +122,11 @@ public class Message {
         return this;
     }
 
+    public Message setNode(ChordNode node) {
+        this.node = node;
+        return this;
+    }
+
     public Message setOrder(int order) {
         this.order = order;
         return this;
@@ -117,18 +147,59 @@ public class Message {
         return this;
     }
 
+    public Message setCredits(int credits) {
+        this.credits = credits;
+        return this;
+    }
+
+    public Message setRequestId(int requestId) {
+        this.requestId = requestId;
+        return this;
+    }
+
+    public Message setCompressed(boolean compressed) {
+        this.compressed = compressed;
+        return this;
+    }
+
     public void setBody(byte[] body) {
-        this.body = body;
+        this.body = body == null ? null : ByteBuffer.wrap(body);
+    }
+
+    /**
+     * Sets the body without copying it: the buffer's content (from its position to its limit) must not change afterwards
+     */
+    public void setBody(ByteBuffer body) {
+        this.body = body == null ? null : body.slice();
     }
 
+    /**
+     * @return the body's bytes, which are copied unless the body is a whole array
+     */
     public byte[] getBody() throws Exception {
         if (this.body == null) throw new Exception("Trying to access body of message without this field.");
-        return body;
+        if (body.hasArray() && body.arrayOffset() == 0 && body.array().length == body.remaining()) return body.array();
+
+        byte[] data = new byte[body.remaining()];
+        body.duplicate().get(data);
+        return data;
+    }
+
+    /**
+     * @return read-only view of the body, without copying it
+     */
+    public ByteBuffer getBodyBuffer() throws Exception {
+        if (this.body == null) throw new Exception("Trying to access body of message without this field.");
+        return body.asReadOnlyBuffer();
+    }
+
+    public int getBodyLength() {
+        return body == null ? 0 : body.remaining();
     }
 
     public float getBodySizeKB() throws Exception {
         if (this.body == null) throw new Exception("Trying to access body of message without this field.");
-        return (float) (body.length / 1000.);
+        return (float) (body.remaining() / 1000.);
     }
 
     public int getFileKey() throws Exception {
@@ -159,6 +230,19 @@ public class Message {
         return order;
     }
 
+    public int getCredits() throws Exception {
+        if (this.credits < 0) throw new Exception("Trying to access credits of message without this field.");
+        return credits;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
     public int getByteAmount() throws Exception {
         if (this.byteAmount < 0) throw new Exception("Trying to access byte amount of message without this field.");
         return byteAmount;
@@ -175,7 +259,7 @@ public class Message {
             builder.append(' ').append(component);
         }
 
-        if (body != null) builder.append(" (body=").append(body.length).append("B)");
+        if (body != null) builder.append(" (body=").append(body.remaining()).append("B)");
 
         return builder.toString();
     }
@@ -183,43 +267,130 @@ public class Message {
     private List<String> getComponents() {
         List<String> components = new ArrayList<>();
         components.add(messageType.toString());
+        components.add(String.valueOf(requestId));
         components.add(String.valueOf(senderId));
         if (fileKey != null) components.add(String.valueOf(fileKey));
         if (order != -1) components.add(String.valueOf(order));
         if (replicationDeg != -1) components.add(String.valueOf(replicationDeg));
         if (alreadyPerceivedDegree != -1) components.add(String.valueOf(alreadyPerceivedDegree));
         if (byteAmount != -1) components.add(String.valueOf(byteAmount));
+        if (credits != -1) components.add(String.valueOf(credits));
         if (node != null) {
             components.add(node.getInetAddress().getHostAddress());
             components.add(String.valueOf(node.getPort()));
             components.add(String.valueOf(node.getId()));
-        } else if (messageType == MessageType.NODE) {
+        } else if (messageType == MessageType.NODE || messageType == MessageType.STABILIZERESPONSE) {
             components.add("NULL");
         }
+        if (compressed) components.add(COMPRESSED_FLAG);
         return components;
     }
 
     public byte[] getBytes() {
-        List<String> headerComponents = getComponents();
+        if (textCodec) return getTextBytes();
 
-        StringBuilder builder = new StringBuilder();
-        headerComponents.forEach((String el) -> {
-            if (el != headerComponents.get(0)) builder.append(' ');  // comparing reference intentionally
-            builder.append(el);
-        });
+        byte[] data = new byte[getEncodedLength()];
+        encode(ByteBuffer.wrap(data));
+        return data;
+    }
 
-        builder.append(' ').append(CRLF).append(CRLF);
-        String str =  builder.toString();
-        byte[] header = str.getBytes();
+    /**
+     * @return the encoded header followed by a read-only view of the body (if there is one), so that they can be
+     *         written one after the other without the body being copied. The header is encoded now, so later changes
+     *         to the message (like its request id) don't affect it.
+     */
+    public ByteBuffer[] getBuffers() {
+        ByteBuffer header;
+        if (textCodec) header = ByteBuffer.wrap(getTextHeader());
+        else {
+            header = ByteBuffer.allocate(getEncodedHeaderLength());
+            encodeHeader(header);
+            header.flip();
+        }
+
+        if (body == null) return new ByteBuffer[] { header };
+        return new ByteBuffer[] { header, body.asReadOnlyBuffer() };
+    }
+
+    private int getFlags() {
+        int flags = 0;
+        if (fileKey != null) flags |= HAS_FILE_KEY;
+        if (order != -1) flags |= HAS_ORDER;
+        if (replicationDeg != -1) flags |= HAS_REPLICATION_DEG;
+        if (byteAmount != -1) flags |= HAS_BYTE_AMOUNT;
+        if (credits != -1) flags |= HAS_CREDITS;
+        if (node != null) flags |= HAS_NODE;
+        if (compressed) flags |= IS_COMPRESSED;
+        if (body != null) flags |= HAS_BODY;
+        return flags;
+    }
+
+    /**
+     * @return size of the binary encoding of the message (header and body)
+     */
+    public int getEncodedLength() {
+        return getEncodedHeaderLength() + getBodyLength();
+    }
+
+    private int getEncodedHeaderLength() {
+        int length = FIXED_HEADER_SIZE;
+        if (fileKey != null) length += 4;
+        if (order != -1) length += 4;
+        if (replicationDeg != -1) length += 2;
+        if (byteAmount != -1) length += 4;
+        if (credits != -1) length += 4;
+        if (node != null) length += NodeList.size(node);
+        return length;
+    }
+
+    /**
+     * Writes the binary encoding of the message to the buffer, which must have getEncodedLength() bytes remaining
+     */
+    public void encode(ByteBuffer buffer) {
+        encodeHeader(buffer);
+        if (body != null) buffer.put(body.duplicate());
+    }
+
+    private void encodeHeader(ByteBuffer buffer) {
+        buffer.put(VERSION);
+        buffer.put((byte) messageType.ordinal());
+        buffer.put((byte) getFlags());
+        buffer.putInt(requestId);
+        buffer.putInt(senderId);
+
+        if (fileKey != null) buffer.putInt(fileKey);
+        if (order != -1) buffer.putInt(order);
+        if (replicationDeg != -1) buffer.putShort(replicationDeg);
+        if (byteAmount != -1) buffer.putInt(byteAmount);
+        if (credits != -1) buffer.putInt(credits);
+        if (node != null) NodeList.put(buffer, node);
+    }
+
+    public byte[] getTextBytes() {
+        byte[] header = getTextHeader();
 
         if (body != null) {
-            byte[] data = new byte[header.length + body.length];
+            byte[] data = new byte[header.length + body.remaining()];
 
             System.arraycopy(header, 0, data, 0, header.length);
-            System.arraycopy(body, 0, data, header.length, body.length);
+            body.duplicate().get(data, header.length, body.remaining());
 
             return data;
         }
         return header;
     }
+
+    private byte[] getTextHeader() {
+        List<String> headerComponents = getComponents();
+
+        StringBuilder builder = new StringBuilder();
+        headerComponents.forEach((String el) -> {
+            if (el != headerComponents.get(0)) builder.append(' ');  // comparing reference intentionally
+            builder.append(el);
+        });
+
+        builder.append(' ').append(CRLF).append(CRLF);
+        String str =  builder.toString();
+        return str.getBytes();
+    }
 }
@@ -4,7 +4,12 @@ import chord.ChordNode;
 import configuration.ArgsException;
 import messages.Message.MessageType;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
 public class MessageFactory {
+    public static final int MAX_BATCH_OPERATIONS = 4096;
 
     public static Message getLookupMessage(int senderId, int key) {
         return new Message(MessageType.LOOKUP,
@@ -12,6 +17,10 @@ public class MessageFactory {
                             key);
     }
 
+    public static Message getNextHopMessage(int senderId, int key) {
+        return new Message(MessageType.NEXTHOP, senderId, key);
+    }
+
     public static Message getLookupResponseMessage(int senderId, int fileKey, ChordNode node) {
         return new Message(MessageType.LOOKUPRESPONSE, senderId, fileKey, node);
     }
@@ -24,6 +33,14 @@ public class MessageFactory {
         return new Message(MessageType.GETSUCCESSOR, senderId);
     }
 
+    public static Message getPingMessage(int senderId) {
+        return new Message(MessageType.PING, senderId);
+    }
+
+    public static Message getPongMessage(int senderId) {
+        return new Message(MessageType.PONG, senderId);
+    }
+
     public static Message getNodeMessage(int senderId, ChordNode node) {
         return new Message(MessageType.NODE, senderId, node);
     }
@@ -32,6 +49,29 @@ public class MessageFactory {
         return new Message(MessageType.NOTIFY, senderId, node);
     }
 
+    public static Message getGetFingersMessage(int senderId) {
+        return new Message(MessageType.GETFINGERS, senderId);
+    }
+
+    public static Message getFingersMessage(int senderId, List<ChordNode> nodes) {
+        Message message = new Message(MessageType.FINGERS, senderId);
+        message.setBody(NodeList.encode(nodes));
+        return message;
+    }
+
+    public static Message getStabilizeMessage(int senderId, ChordNode node) {
+        return new Message(MessageType.STABILIZE, senderId, node);
+    }
+
+    /**
+     * @param predecessor null if the peer doesn't have one
+     */
+    public static Message getStabilizeResponseMessage(int senderId, ChordNode predecessor, List<ChordNode> successors) {
+        Message message = new Message(MessageType.STABILIZERESPONSE, senderId, predecessor);
+        message.setBody(NodeList.encode(successors));
+        return message;
+    }
+
     public static Message getPutfileMessage(int senderId, int fileKey, int nParts, int replicationDegree, int byteAmount) {
         return new Message(MessageType.PUTFILE,
                             senderId,
@@ -41,12 +81,18 @@ public class MessageFactory {
                             byteAmount);
     }
 
-    public static Message getDataMessage(int senderId, int fileKey, int order, byte[] body) {
-        return new Message(MessageType.DATA,
-                                senderId,
-                                fileKey,
-                                order,
-                                body);
+    public static Message getDataMessage(int senderId, int fileKey, int order, ByteBuffer body) {
+        Message message = new Message(MessageType.DATA, senderId, fileKey).setOrder(order);
+        message.setBody(body);
+        return message;
+    }
+
+    public static Message getCompressedDataMessage(int senderId, int fileKey, int order, byte[] body) {
+        return getDataMessage(senderId, fileKey, order, ByteBuffer.wrap(body)).setCompressed(true);
+    }
+
+    public static Message getCreditMessage(int senderId, int fileKey, int credits) {
+        return new Message(MessageType.CREDIT, senderId, fileKey).setCredits(credits);
     }
 
     public static Message getProcessedNoMessage(int senderId) {
@@ -85,4 +131,17 @@ public class MessageFactory {
     public static Message getAddPointerMessage(int senderId, int fileKey) {
         return new Message(MessageType.ADDPOINTER, senderId, fileKey);
     }
+
+    /**
+     * @return BATCH messages with the operations, at most MAX_BATCH_OPERATIONS in each
+     */
+    public static List<Message> getBatchMessages(int senderId, List<BatchOperation> operations) {
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < operations.size(); i += MAX_BATCH_OPERATIONS) {
+            Message message = new Message(MessageType.BATCH, senderId);
+            message.setBody(BatchOperation.encode(operations.subList(i, Math.min(operations.size(), i + MAX_BATCH_OPERATIONS))));
+            messages.add(message);
+        }
+        return messages;
+    }
 }
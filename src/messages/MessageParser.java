@@ -7,17 +7,58 @@ import utils.IntParser;
 import utils.Logger;
 
 import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 public class MessageParser {
+    private static final MessageType[] types = MessageType.values();
 
+    /**
+     * The body of the message isn't copied, it's a slice of data, which therefore must not be reused
+     */
     public static Message parse(byte[] data, int length) throws ArgsException, UnknownHostException {
+        if (length > 0 && data[0] == Message.VERSION) return parseBinary(data, length);
+        return parseText(data, length);
+    }
+
+    private static Message parseBinary(byte[] data, int length) throws ArgsException, UnknownHostException {
+        if (length < Message.FIXED_HEADER_SIZE) throw new ArgsException(Type.INVALID_MESSAGE);
+
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        buffer.get();  // version
+        int typeIndex = buffer.get() & 0xFF;
+        if (typeIndex >= types.length) throw new ArgsException(Type.MESSAGE_TYPE);
+        MessageType type = types[typeIndex];
+        int flags = buffer.get() & 0xFF;
+        int requestId = buffer.getInt();
+        int senderId = buffer.getInt();
+
+        try {
+            Message message = new Message(senderId, (flags & Message.HAS_FILE_KEY) != 0 ? buffer.getInt() : null);
+            message.setMessageType(type).setRequestId(requestId);
+
+            if ((flags & Message.HAS_ORDER) != 0) message.setOrder(buffer.getInt());
+            if ((flags & Message.HAS_REPLICATION_DEG) != 0) message.setReplicationDeg(buffer.getShort());
+            if ((flags & Message.HAS_BYTE_AMOUNT) != 0) message.setByteAmount(buffer.getInt());
+            if ((flags & Message.HAS_CREDITS) != 0) message.setCredits(buffer.getInt());
+            if ((flags & Message.HAS_NODE) != 0) message.setNode(NodeList.get(buffer));
+            message.setCompressed((flags & Message.IS_COMPRESSED) != 0);
+            if ((flags & Message.HAS_BODY) != 0) message.setBody(buffer.slice());
+
+            return message;
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            throw new ArgsException(Type.INVALID_MESSAGE);
+        }
+    }
+
+    private static Message parseText(byte[] data, int length) throws ArgsException, UnknownHostException {
         int bodyStart = -1, headerEnd = -1;
         for (int i = 0; i < data.length; i++) {
             byte b = data[i];
             if (b == 0xD) {
                 if (data[i+1] == 0xA && data[i+2] == 0xD && data[i+3] == 0xA) {
-                    if (data.length > i + 4 && data[i + 3] != ' ') bodyStart = i + 4;
+                    bodyStart = i + 4;  // messages are framed, so the body (if any) goes until the end
                     headerEnd = i - 1;
                     break;
                 }
@@ -28,42 +69,47 @@ public class MessageParser {
 
         String[] headerPieces = header.split(" +"); // regex for spaces (works with multiple spaces)
 
-        if (headerPieces.length < 3) throw new ArgsException(Type.INVALID_MESSAGE);
+        if (headerPieces.length < 4) throw new ArgsException(Type.INVALID_MESSAGE);
 
         String messageType = headerPieces[0];
 
         MessageType type = MessageType.valueOf(messageType);
 
-        int senderId = IntParser.parse(headerPieces[1]);
+        int requestId = IntParser.parse(headerPieces[1]);
+        int senderId = IntParser.parse(headerPieces[2]);
         Message message;
 
         if (needsFileKey(type)) {
-            int fileKey = IntParser.parse(headerPieces[2]);
+            int fileKey = IntParser.parse(headerPieces[3]);
             message = new Message(senderId, fileKey);
             message.setMessageType(type);
 
             switch(type)
             {
                 case PUTFILE:
-                    message.setOrder(Integer.parseInt(headerPieces[3]))
-                        .setReplicationDeg((short) Integer.parseInt(headerPieces[4]))
-                        .setByteAmount(Integer.parseInt(headerPieces[5]));
+                    message.setOrder(Integer.parseInt(headerPieces[4]))
+                        .setReplicationDeg((short) Integer.parseInt(headerPieces[5]))
+                        .setByteAmount(Integer.parseInt(headerPieces[6]))
+                        .setCompressed(headerPieces.length > 7 && headerPieces[7].equals(Message.COMPRESSED_FLAG));
 
-                    byte[] body = Arrays.copyOfRange(data, bodyStart, length);
-                    message.setBody(body);
+                    message.setBody(ByteBuffer.wrap(data, bodyStart, length - bodyStart));
                     break;
 
                 case DATA:
-                    byte[] chunkBodyData = Arrays.copyOfRange(data, bodyStart, length);
-                    message.setOrder(Integer.parseInt(headerPieces[3]))
-                        .setBody(chunkBodyData);
+                    message.setOrder(Integer.parseInt(headerPieces[4]))
+                        .setCompressed(headerPieces.length > 5 && headerPieces[5].equals(Message.COMPRESSED_FLAG))
+                        .setBody(ByteBuffer.wrap(data, bodyStart, length - bodyStart));
+                    break;
+
+                case DELETE: case LOOKUP: case REMOVEPOINTER: case ADDPOINTER: case NEXTHOP:
                     break;
 
-                case DELETE: case LOOKUP: case REMOVEPOINTER: case ADDPOINTER:
+                case CREDIT:
+                    message.setCredits(IntParser.parse(headerPieces[4]));
                     break;
 
                 case LOOKUPRESPONSE: case GETFILE:
-                    message.setNode(headerPieces[3], IntParser.parse(headerPieces[4]), IntParser.parse(headerPieces[5]));
+                    message.setNode(headerPieces[4], IntParser.parse(headerPieces[5]), IntParser.parse(headerPieces[6]));
                     break;
 
                 default:
@@ -77,11 +123,20 @@ public class MessageParser {
             message.setMessageType(type);
             
             switch (type) {
-                case GETPREDECESSOR: case PROCESSEDNO: case PROCESSEDYES: case GETSUCCESSOR: break;
+                case GETPREDECESSOR: case PROCESSEDNO: case PROCESSEDYES: case GETSUCCESSOR: case PING: case PONG: case GETFINGERS: break;
+
+                case BATCH: case FINGERS:
+                    message.setBody(ByteBuffer.wrap(data, bodyStart, length - bodyStart));
+                    break;
 
-                case NOTIFY: case NODE: case REDIRECT: case CHECK:
-                    if (type == MessageType.NODE && headerPieces.length < 5) break;  // is null
-                    message.setNode(headerPieces[2], IntParser.parse(headerPieces[3]), IntParser.parse(headerPieces[4]));
+                case NOTIFY: case NODE: case REDIRECT: case CHECK: case STABILIZE:
+                    if (type == MessageType.NODE && headerPieces.length < 6) break;  // is null
+                    message.setNode(headerPieces[3], IntParser.parse(headerPieces[4]), IntParser.parse(headerPieces[5]));
+                    break;
+
+                case STABILIZERESPONSE:
+                    if (headerPieces.length >= 6) message.setNode(headerPieces[3], IntParser.parse(headerPieces[4]), IntParser.parse(headerPieces[5]));
+                    message.setBody(ByteBuffer.wrap(data, bodyStart, length - bodyStart));
                     break;
                 
                 default:
@@ -90,11 +145,14 @@ public class MessageParser {
             }
         }
 
+        message.setRequestId(requestId);
+
         return message;
     }
 
     public static boolean needsFileKey(MessageType type) {
         return type == MessageType.DELETE || type == MessageType.DATA || type == MessageType.ADDPOINTER || type == MessageType.REMOVEPOINTER
-            || type == MessageType.PUTFILE || type == MessageType.LOOKUP || type == MessageType.GETFILE || type == MessageType.LOOKUPRESPONSE;
+            || type == MessageType.PUTFILE || type == MessageType.LOOKUP || type == MessageType.GETFILE || type == MessageType.LOOKUPRESPONSE
+            || type == MessageType.CREDIT || type == MessageType.NEXTHOP;
     }
 }
@@ -0,0 +1,60 @@
+package messages;
+
+import chord.ChordNode;
+import configuration.ArgsException;
+import configuration.ArgsException.Type;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary encoding of nodes: the address' length (1 byte), address, port (2 bytes) and id (4 bytes).
+ * Used for the node of a message and for the successor list in the body of a STABILIZERESPONSE.
+ */
+public class NodeList {
+    public static int size(ChordNode node) {
+        return 1 + node.getInetAddress().getAddress().length + 2 + 4;
+    }
+
+    public static void put(ByteBuffer buffer, ChordNode node) {
+        byte[] address = node.getInetAddress().getAddress();
+        buffer.put((byte) address.length);
+        buffer.put(address);
+        buffer.putShort((short) node.getPort());
+        buffer.putInt(node.getId());
+    }
+
+    /**
+     * @throws BufferUnderflowException if the buffer ends in the middle of the node
+     */
+    public static ChordNode get(ByteBuffer buffer) throws UnknownHostException {
+        byte[] address = new byte[buffer.get()];
+        buffer.get(address);
+        int port = buffer.getShort() & 0xFFFF;
+        return new ChordNode(new InetSocketAddress(InetAddress.getByAddress(address), port), buffer.getInt());
+    }
+
+    public static byte[] encode(List<ChordNode> nodes) {
+        int length = 0;
+        for (ChordNode node : nodes) length += size(node);
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (ChordNode node : nodes) put(buffer, node);
+        return buffer.array();
+    }
+
+    public static List<ChordNode> decode(ByteBuffer body) throws ArgsException {
+        List<ChordNode> nodes = new ArrayList<>();
+        try {
+            while (body.hasRemaining()) nodes.add(get(body));
+        } catch (BufferUnderflowException | NegativeArraySizeException | UnknownHostException e) {
+            throw new ArgsException(Type.INVALID_MESSAGE);
+        }
+        return nodes;
+    }
+}
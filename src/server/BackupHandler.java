@@ -7,6 +7,8 @@ import messages.MessageFactory;
 import state.OthersFileInfo;
 import utils.Logger;
 
+import java.nio.ByteBuffer;
+
 public class BackupHandler {
     private final DataBucket dataBucket;
     private final PeerConfiguration configuration;
@@ -45,16 +47,16 @@ public class BackupHandler {
 
 
                 Logger.log("Going to backup file " + message.getFileKey());
-                dataBucket.add(message.getFileKey(), new FileBucket(message.getOrder(), (byte[] data) -> {
+                dataBucket.add(message.getFileKey(), new FileBucket(message.getOrder(), (ByteBuffer[] parts) -> {
                     try {
-                        if (data == null) {
+                        if (parts == null) {
                             Logger.error("Wasn't able to backup file " + message.getFileKey() + " :(");
                             return;
                         }
 
-                        new FileManager(configuration.getRootDir()).writeBackedupFile(message.getFileKey(), data); // saving the file
+                        long size = new FileManager(configuration.getRootDir()).writeBackedupFile(message.getFileKey(), parts); // saving the file
 
-                        configuration.getPeerState().addBackedUpFile(new OthersFileInfo(message.getFileKey(), data.length / (float) 1000., message.getReplicationDeg()));
+                        configuration.getPeerState().addBackedUpFile(new OthersFileInfo(message.getFileKey(), size / (float) 1000., message.getReplicationDeg()));
                         Logger.log("Backed up file " + message.getFileKey() + "!");
 
                     } catch (Exception e) {
@@ -2,20 +2,54 @@ package server;
 
 import utils.Logger;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
 
 public class DataBucket {
+    /* Parts that a sender may send before it is granted credits for more (its window) */
+    public static final int INITIAL_CREDITS = 16;
+    /* Bytes of received parts held in memory (in every bucket) above which senders are slowed down */
+    private static final long MAX_PENDING_BYTES = 64L * 1024 * 1024;
+
     private final ConcurrentHashMap<Integer, FileBucket> fileData = new ConcurrentHashMap<>();
 
     public void add(int fileKey, FileBucket bucket) {
         fileData.put(fileKey, bucket);
     }
 
-    public void add(int fileKey, int portionNumeration, byte[] data) {
-        if (!fileData.containsKey(fileKey)) {
+    /**
+     * Stores the part and grants credits to its sender according to how much data this peer is holding:
+     * while the parts that weren't written yet (of every file being received) are below MAX_PENDING_BYTES, the sender's
+     * window is restored to INITIAL_CREDITS; above it, credits are withheld (0 is granted) and the sender is left with
+     * one part in flight at a time, until the buckets are written to disk.
+     * @param compressed whether the data is deflated
+     * @return amount of credits granted to the sender (how many more parts it may send), or -1 if the part was refused
+     * (the file isn't expected or the data is corrupted)
+     */
+    public int add(int fileKey, int portionNumeration, ByteBuffer data, boolean compressed) {
+        FileBucket bucket = fileData.get(fileKey);
+        if (bucket == null) {
             Logger.error("[DATABUCKET] fileData doesn't contain the received key!");
+            return -1;
+        }
+        try {
+            bucket.add(portionNumeration, data, compressed);
+        } catch (DataFormatException e) {
+            Logger.error("decompressing part " + portionNumeration + " of file " + fileKey, e, false);
+            return -1;
         }
-        fileData.get(fileKey).add(portionNumeration, data);
+        return bucket.grant(getPendingBytes() < MAX_PENDING_BYTES);
+    }
+
+    /**
+     * @return bytes of the received parts that are still in memory, waiting for the rest of their file
+     */
+    public long getPendingBytes() {
+        fileData.values().removeIf(FileBucket::isFinished);
+
+        long pending = 0;
+        for (FileBucket bucket : fileData.values()) pending += bucket.getPendingBytes();
+        return pending;
     }
-    
 }
@@ -1,47 +1,46 @@
 package server;
 
+import utils.Compression;
 import utils.Logger;
 
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
 
 public class FileBucket {
 
     private final Map<Integer, FilePart> parts = new ConcurrentHashMap<>();
     private final int goal;
-    private final Consumer<byte[]> onComplete;
+    private final Consumer<ByteBuffer[]> onComplete;
     private final ScheduledFuture<?> future;
     private int count = 0;
     private int timeout = 120;
+    private long pendingBytes = 0;  // received and not written yet
+    private int senderCredits = DataBucket.INITIAL_CREDITS;  // parts the sender may still send, as far as this side knows
 
-    public FileBucket(int goal, Consumer<byte[]> onComplete, int timeout) {
+    public FileBucket(int goal, Consumer<ByteBuffer[]> onComplete, int timeout) {
         this(goal, onComplete);
         this.timeout = timeout;
     }
 
-    public FileBucket(int goal, Consumer<byte[]> onComplete) {
+    /**
+     * @param onComplete receives the parts of the file in order (or null if they didn't all arrive in time),
+     *                   which are views of the received messages, so that they are written without being copied
+     */
+    public FileBucket(int goal, Consumer<ByteBuffer[]> onComplete) {
         this.goal = goal;
         this.onComplete = onComplete;
         future = Executors.newSingleThreadScheduledExecutor().scheduleWithFixedDelay(this::check, 250, 250, TimeUnit.MILLISECONDS);
     }
 
-    private byte[] assembleFile() {
-        int size = 0;
-        for (FilePart part : parts.values()) size += part.getAmount();
-
-        byte[] file = new byte[size];
-
-        int totalAmount = 0;
-        for (int i = 1; i <= parts.size(); i++) {
-            FilePart part = parts.get(i);
-            System.arraycopy(part.getData(), 0, file, totalAmount, part.getAmount());
-            totalAmount += part.getAmount();
-        }
-
+    private ByteBuffer[] assembleFile() {
+        ByteBuffer[] file = new ByteBuffer[parts.size()];
+        for (int i = 1; i <= parts.size(); i++) file[i - 1] = parts.get(i).getData();
         return file;
     }
 
@@ -53,6 +52,10 @@ public class FileBucket {
             future.cancel(false);
 
             if (parts.size() > goal) Logger.error("Got more parts than needed! (" + parts.size() + "/" + goal + ")");
+            parts.clear();  // the parts were written, so the received messages can be collected
+            synchronized(this) {
+                pendingBytes = 0;
+            }
         }
         synchronized(this) {
             count++;
@@ -60,14 +63,44 @@ public class FileBucket {
             {
                 onComplete.accept(null);
                 future.cancel(false);
+                parts.clear();
+                pendingBytes = 0;
             }
         }
     }
 
-    public void add(int partNumeration, byte[] data) {
-        parts.put(partNumeration, new FilePart(data, data.length));
+    /**
+     * @return bytes of the parts that were received and are still held in memory
+     */
+    public synchronized long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    public boolean isFinished() {
+        return future.isDone();
+    }
+
+    /**
+     * Accounts for a part that used one of the sender's credits and decides how many to give back: enough to restore
+     * its whole window while the receiver has room, otherwise none until the sender runs out, and then only one
+     * (so the transfer goes on, one part at a time, instead of stalling)
+     */
+    public synchronized int grant(boolean hasRoom) {
+        senderCredits = Math.max(senderCredits - 1, 0);
+        int granted = hasRoom ? DataBucket.INITIAL_CREDITS - senderCredits : (senderCredits == 0 ? 1 : 0);
+        senderCredits += granted;
+        return granted;
+    }
+
+    /**
+     * @param compressed whether the data is deflated, in which case it's stored decompressed
+     */
+    public void add(int partNumeration, ByteBuffer data, boolean compressed) throws DataFormatException {
+        if (compressed) data = ByteBuffer.wrap(Compression.inflate(data));
+        FilePart previous = parts.put(partNumeration, new FilePart(data, data.remaining()));
         synchronized(this) {
             count = 0;
+            pendingBytes += data.remaining() - (previous == null ? 0 : previous.getAmount());
         }
     }
 }
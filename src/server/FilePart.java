@@ -1,15 +1,17 @@
 package server;
 
+import java.nio.ByteBuffer;
+
 class FilePart {
-    private final byte[] data;
+    private final ByteBuffer data;
     private final int amount;
 
-    public FilePart(byte[] data, int amount) {
+    public FilePart(ByteBuffer data, int amount) {
         this.data = data;
         this.amount = amount;
     }
 
-    public byte[] getData() {
+    public ByteBuffer getData() {
         return data;
     }
 
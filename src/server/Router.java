@@ -1,10 +1,8 @@
 package server;
 
 import messages.Message;
-
-import javax.net.ssl.SSLEngine;
-import java.nio.channels.SocketChannel;
+import sslengine.SSLConnection;
 
 public interface Router {
-    void handle(Message message, SocketChannel socket, SSLEngine engine, String address) throws Exception;
+    void handle(Message message, SSLConnection connection, String address) throws Exception;
 }
@@ -6,16 +6,21 @@ import chord.ChordNode;
 import configuration.PeerConfiguration;
 import files.FileManager;
 import files.FileRepresentation;
+import messages.BatchOperation;
 import messages.Message;
+import messages.Message.MessageType;
 import messages.MessageFactory;
 import sslengine.SSLClient;
+import sslengine.SSLConnection;
 import state.OthersFileInfo;
 import state.PeerState;
 import utils.Logger;
 import utils.Logger.DebugType;
+import utils.Result;
+
+import java.util.ArrayList;
+import java.util.List;
 
-import javax.net.ssl.SSLEngine;
-import java.nio.channels.SocketChannel;
 
 public class ServerRouter implements Router {
     
@@ -29,7 +34,7 @@ public class ServerRouter implements Router {
         this.backupHandler = new BackupHandler(configuration, dataBucket);
     }
 
-    public void handle(Message message, SocketChannel socket, SSLEngine engine, String address) throws Exception {
+    public void handle(Message message, SSLConnection connection, String address) throws Exception {
         Logger.debug(message, address);
 
         Message response = null;
@@ -39,11 +44,24 @@ public class ServerRouter implements Router {
         switch(message.getMessageType()) {
             case LOOKUP:
                 Logger.debug(configuration.getChord().getSelf(), "Received LOOKUP of key " + message.getFileKey());
-                ChordNode node = configuration.getChord().lookup(message.getFileKey()).get();
-                if (node == null) break;
-                Logger.debug(configuration.getChord().getSelf(), "Replying with " + node.toString());
+                int key = message.getFileKey();
+
+                // replies when the lookup completes, instead of keeping this thread waiting for the next peers
+                // (with PROCESSEDNO if it failed, so that the requester doesn't wait for the reply to time out)
+                configuration.getChord().lookup(key, false).whenComplete((ChordNode node, Throwable e) -> {
+                    if (e != null || node == null) {
+                        if (e != null) Logger.error("looking up key " + key, e, false);
+                        reply(message, connection, MessageFactory.getProcessedNoMessage(configuration.getPeerId()));
+                        return;
+                    }
+                    Logger.debug(configuration.getChord().getSelf(), "Replying with " + node.toString());
+
+                    reply(message, connection, MessageFactory.getLookupResponseMessage(configuration.getPeerId(), key, node));
+                });
+                break;
 
-                response = MessageFactory.getLookupResponseMessage(configuration.getPeerId(), message.getFileKey(), node);
+            case NEXTHOP:
+                response = configuration.getChord().nextHop(message.getFileKey());
                 break;
 
             case GETPREDECESSOR:
@@ -54,6 +72,10 @@ public class ServerRouter implements Router {
                 response = MessageFactory.getNodeMessage(configuration.getPeerId(), predecessorNode);
                 break;
 
+            case PING:
+                response = MessageFactory.getPongMessage(configuration.getPeerId());
+                break;
+
             case GETSUCCESSOR:
                 Logger.debug(configuration.getChord().getSelf(), "Received GETSUCCESSOR");
                 ChordNode successorNode = configuration.getChord().getSuccessor();
@@ -67,6 +89,15 @@ public class ServerRouter implements Router {
                 configuration.getChord().notify(message.getNode());
                 break;
 
+            case GETFINGERS:
+                response = MessageFactory.getFingersMessage(configuration.getPeerId(), configuration.getChord().getKnownNodes());
+                break;
+
+            case STABILIZE:
+                Logger.debug(configuration.getChord().getSelf(), "Received STABILIZE");
+                response = configuration.getChord().stabilizeResponse(message.getNode());
+                break;
+
             case PUTFILE:
                 response = backupHandler.handle(message);
                 break;
@@ -74,7 +105,9 @@ public class ServerRouter implements Router {
             case DATA:
                 Logger.debug(DebugType.FILETRANSFER, "Received DATA: " + message);
 
-                dataBucket.add(message.getFileKey(), message.getOrder(), message.getBody());
+                int credits = dataBucket.add(message.getFileKey(), message.getOrder(), message.getBodyBuffer(), message.isCompressed());
+                response = credits < 0 ? MessageFactory.getProcessedNoMessage(configuration.getPeerId())
+                        : MessageFactory.getCreditMessage(configuration.getPeerId(), message.getFileKey(), credits);
                 break;
 
             case GETFILE:
@@ -89,8 +122,18 @@ public class ServerRouter implements Router {
                 }
                 else
                 {
+                    // replies right away: the transfer is paced by the restorer's credits and can take much longer than a reply
                     FileManager manager = new FileManager(configuration.getRootDir());
-                    FileSender.sendFile(configuration, new FileRepresentation(message.getFileKey(), manager.readBackedUpFile(message.getFileKey())), message.getNode());
+                    FileRepresentation file = new FileRepresentation(message.getFileKey(), manager.readBackedUpFile(message.getFileKey()));
+                    ChordNode restorer = message.getNode();
+                    configuration.getHandlerPool().execute(() -> {
+                        try {
+                            Result result = FileSender.sendFile(configuration, file, restorer);
+                            if (!result.success()) throw new Exception(result.getMessage());
+                        } catch (Exception e) {
+                            Logger.error("sending file to " + restorer, e, false);
+                        }
+                    });
                     response = MessageFactory.getProcessedYesMessage(configuration.getPeerId());
                 }
                 break;
@@ -112,18 +155,22 @@ public class ServerRouter implements Router {
                 StringBuilder builder = new StringBuilder();
                 builder.append("%% Check of ").append(sender).append(" by ").append(selfId).append(" %%\nMissing files:\n");
 
+                // the pointers are sent in batches, instead of a message for each file
+                List<BatchOperation> pointers = new ArrayList<>();
                 for (int fileKey : state.getFilePointers()) {
                     if (Chord.isBetween(sender.getId(), fileKey, selfId, false)) {  // if the sender is a successor of the file and is before this node
-                        SSLClient.sendQueued(sender, MessageFactory.getAddPointerMessage(selfId, fileKey), false);
+                        pointers.add(new BatchOperation(MessageType.ADDPOINTER, fileKey));
                         builder.append("\t").append(fileKey).append(" (i have pointer)\n");
                     }
                 }
                 for (OthersFileInfo file : state.getOthersFiles()) {
                     if (Chord.isBetween(sender.getId(), file.getFileKey(), selfId, false)) { // if the sender is a successor of the file and is before this node
-                        SSLClient.sendQueued(sender, MessageFactory.getAddPointerMessage(selfId, file.getFileKey()), false);
+                        pointers.add(new BatchOperation(MessageType.ADDPOINTER, file.getFileKey()));
                         builder.append("\t").append(file.getFileKey()).append(" (i backed up)\n");
                     }
                 }
+                for (Message batch : MessageFactory.getBatchMessages(selfId, pointers))
+                    SSLClient.sendQueued(sender, batch, false);
 //                builder.append("\nFiles to be deleted:\n");
 //                for (int fileKey : state.getDeletedFiles()) {
 //                    if (Chord.isBetween(sender.getId(), fileKey, selfId, false)) { // if the sender is a successor of the file and is before this node
@@ -138,26 +185,23 @@ public class ServerRouter implements Router {
                 // state.addDeletedFile(message.getFileKey());
 
                 Logger.debug(DebugType.DELETE, "Received delete for file = " + message.getFileKey());
-                if (state.isPointerFile(message.getFileKey()) || state.hasBackedUpFile(message.getFileKey())) {
-                    if (state.isPointerFile(message.getFileKey())) {
-                        Logger.debug(DebugType.DELETE, "Had file pointer to file " + message.getFileKey() + ". Deleting!");
-
-                        state.removePointerFile(message.getFileKey());
-                    }
-                    if (state.hasBackedUpFile(message.getFileKey())) {
-                        Logger.debug(DebugType.DELETE, "Had backed up file " + message.getFileKey() + ". Deleting!");
+                if (delete(state, message.getFileKey())) response = MessageFactory.getProcessedYesMessage(configuration.getPeerId());
+                else response = MessageFactory.getProcessedNoMessage(configuration.getPeerId());
+                break;
 
-                        state.deleteOthersFile(message.getFileKey());
-                        FileManager manager = new FileManager(configuration.getRootDir());
-                        manager.deleteBackedUpFile(message.getFileKey());
+            case BATCH:
+                List<BatchOperation> operations = BatchOperation.decode(message.getBodyBuffer());
+                Logger.debug(DebugType.FILEPOINTER, "Received BATCH of " + operations.size() + " operation(s)");
+
+                state.batch(() -> {
+                    for (BatchOperation operation : operations) {
+                        switch (operation.getType()) {
+                            case ADDPOINTER: state.addPointerFile(operation.getFileKey()); break;
+                            case REMOVEPOINTER: state.removePointerFile(operation.getFileKey()); break;
+                            case DELETE: delete(state, operation.getFileKey()); break;
+                        }
                     }
-                    response = MessageFactory.getProcessedYesMessage(configuration.getPeerId());
-                }
-                else
-                {
-                    Logger.debug(DebugType.DELETE, "Didn't backup file " + message.getFileKey() + ". Not deleting!");
-                    response = MessageFactory.getProcessedNoMessage(configuration.getPeerId());
-                }
+                });
                 break;
 
             default:
@@ -165,9 +209,41 @@ public class ServerRouter implements Router {
                 break;
         }
 
-        if (response != null) {
-            Logger.debug(DebugType.MESSAGE, "Sending response to client (" + response + ")");
-            configuration.getServer().write(socket, engine, response.getBytes());
+        if (response != null) reply(message, connection, response);
+    }
+
+    private void reply(Message request, SSLConnection connection, Message response) {
+        Logger.debug(DebugType.MESSAGE, "Sending response to client (" + response + ")");
+        response.setRequestId(request.getRequestId());  // so that the client knows which request this answers
+        try {
+            configuration.getServer().write(connection, response);
+        } catch (Exception e) {
+            Logger.error("replying to " + request, e, false);
+        }
+    }
+
+    /**
+     * Deletes the pointer to the file and the backed up file, if they exist
+     * @return false if there was neither
+     */
+    private boolean delete(PeerState state, int fileKey) {
+        if (!state.isPointerFile(fileKey) && !state.hasBackedUpFile(fileKey)) {
+            Logger.debug(DebugType.DELETE, "Didn't backup file " + fileKey + ". Not deleting!");
+            return false;
+        }
+
+        if (state.isPointerFile(fileKey)) {
+            Logger.debug(DebugType.DELETE, "Had file pointer to file " + fileKey + ". Deleting!");
+
+            state.removePointerFile(fileKey);
+        }
+        if (state.hasBackedUpFile(fileKey)) {
+            Logger.debug(DebugType.DELETE, "Had backed up file " + fileKey + ". Deleting!");
+
+            state.deleteOthersFile(fileKey);
+            FileManager manager = new FileManager(configuration.getRootDir());
+            manager.deleteBackedUpFile(fileKey);
         }
+        return true;
     }
 }
@@ -0,0 +1,88 @@
+package sslengine;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the buffers used to wrap and unwrap TLS records so that they can be reused instead of allocated for every message.
+ * Network buffers are direct, so that the socket can read and write them without an extra copy.
+ * The amount of buffers kept for each size is bounded: the ones given back when it is full are left to the garbage collector.
+ */
+public class BufferPool {
+    private final Map<Integer, Bucket> direct = new ConcurrentHashMap<>(), heap = new ConcurrentHashMap<>();
+    private final int maxBuffersPerSize;
+    private final AtomicLong hits = new AtomicLong(0), misses = new AtomicLong(0);
+
+    public BufferPool(int maxBuffersPerSize) {
+        this.maxBuffersPerSize = maxBuffersPerSize;
+    }
+
+    /**
+     * @return a cleared direct buffer with the given capacity, for data that goes to or comes from a socket
+     */
+    public ByteBuffer acquireNet(int capacity) {
+        return acquire(direct, capacity, true);
+    }
+
+    /**
+     * @return a cleared heap buffer with the given capacity, for application data
+     */
+    public ByteBuffer acquireApp(int capacity) {
+        return acquire(heap, capacity, false);
+    }
+
+    private ByteBuffer acquire(Map<Integer, Bucket> buckets, int capacity, boolean isDirect) {
+        Bucket bucket = buckets.get(capacity);
+        ByteBuffer buffer = bucket == null ? null : bucket.buffers.poll();
+        if (buffer == null) {
+            misses.incrementAndGet();
+            return isDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+
+        bucket.size.decrementAndGet();
+        hits.incrementAndGet();
+        return buffer.clear();
+    }
+
+    /**
+     * Gives back a buffer that is no longer used. It must not be used after this.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) return;
+
+        Bucket bucket = (buffer.isDirect() ? direct : heap).computeIfAbsent(buffer.capacity(), (Integer capacity) -> new Bucket());
+        if (bucket.size.incrementAndGet() > maxBuffersPerSize) {
+            bucket.size.decrementAndGet();
+            return;
+        }
+        bucket.buffers.add(buffer);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public double getHitRate() {
+        long hits = this.hits.get(), total = hits + misses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool[hits=" + getHits() + ", misses=" + getMisses() + ", hitRate=" + String.format("%.2f", getHitRate()) + "]";
+    }
+
+    private static class Bucket {
+        private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger(0);
+    }
+}
@@ -0,0 +1,133 @@
+package sslengine;
+
+import utils.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Event loop shared by all the outbound connections. It finishes the connections that are being
+ * established, reads the replies as soon as they arrive and writes the records that the sockets
+ * didn't accept when they were sent, so no thread has to wait for them.
+ */
+public class ClientSelector implements Runnable {
+    private final Selector selector;
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    public ClientSelector() {
+        try {
+            this.selector = Selector.open();
+        } catch (IOException e) {
+            throw new UncheckedIOException("opening client selector", e);
+        }
+
+        Thread thread = new Thread(this, "client-selector");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Waits for the connection of the socket (which must be non-blocking and have a pending connection)
+     * @return future that completes once the connection is established
+     */
+    public CompletableFuture<Void> connect(SocketChannel socket) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        execute(() -> {
+            try {
+                socket.register(selector, SelectionKey.OP_CONNECT, future);
+            } catch (ClosedChannelException e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Starts reading the replies that arrive in the client's connection
+     */
+    public void register(SSLClient client) {
+        execute(() -> {
+            try {
+                client.setKey(client.getSocket().register(selector, SelectionKey.OP_READ, client));
+                // the handshake may have read more than it needed
+                if (client.hasPendingData()) client.onReadable();
+            } catch (IOException e) {
+                client.onReadable();
+            }
+        });
+    }
+
+    /**
+     * Closes the client's connection once the records that are waiting in it are written,
+     * or after the timeout if the other side doesn't read them
+     */
+    public void close(SSLClient client, long timeout) {
+        execute(client::onClose);
+        CompletableFuture.delayedExecutor(timeout, TimeUnit.MILLISECONDS, this::execute).execute(client::finishClose);
+    }
+
+    private void execute(Runnable task) {
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+
+                Runnable task;
+                while ((task = pendingTasks.poll()) != null) task.run();
+
+                Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+
+                    if (!key.isValid()) continue;
+
+                    if (key.isConnectable()) {
+                        finishConnect(key);
+                        continue;
+                    }
+
+                    SSLClient client = (SSLClient) key.attachment();
+                    if (key.isWritable()) client.onWritable();
+                    if (key.isValid() && key.isReadable()) client.onReadable();
+                }
+            } catch (Exception e) {
+                Logger.error("running client selector", e, true);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void finishConnect(SelectionKey key) {
+        CompletableFuture<Void> future = (CompletableFuture<Void>) key.attachment();
+        try {
+            if (((SocketChannel) key.channel()).finishConnect()) {
+                key.interestOps(0);
+                future.complete(null);
+            }
+        } catch (IOException e) {
+            key.cancel();
+            future.completeExceptionally(e);
+        }
+    }
+
+    public void destroy() {
+        running = false;
+        selector.wakeup();
+    }
+}
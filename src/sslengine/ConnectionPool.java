@@ -0,0 +1,182 @@
+package sslengine;
+
+import utils.Logger;
+import utils.Logger.DebugType;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Keeps authenticated connections to other peers open so that they can be reused across messages,
+ * avoiding a new TLS handshake for every message that is sent.
+ * Since requests carry an id, a connection is shared by several requests at the same time: a new one
+ * is only opened when all the others have too many requests in flight.
+ */
+public class ConnectionPool {
+    private final Map<InetSocketAddress, PeerConnections> peers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor((Runnable runnable) -> {
+        Thread thread = new Thread(runnable, "pool-evictor");
+        thread.setDaemon(true);  // must not keep the JVM alive if destroy isn't called
+        return thread;
+    });
+    private final int maxConnectionsPerPeer;
+    private final int maxRequestsPerConnection;
+    private final long idleTimeout;
+    private final long acquireTimeout = 10000;
+
+    /**
+     * @param maxConnectionsPerPeer maximum amount of connections that can be open to the same peer
+     * @param maxRequestsPerConnection amount of requests in flight in a connection after which a new one is opened
+     * @param idleTimeout time (in milliseconds) after which an unused connection is closed
+     */
+    public ConnectionPool(int maxConnectionsPerPeer, int maxRequestsPerConnection, long idleTimeout) {
+        this.maxConnectionsPerPeer = maxConnectionsPerPeer;
+        this.maxRequestsPerConnection = maxRequestsPerConnection;
+        this.idleTimeout = idleTimeout;
+        evictor.scheduleWithFixedDelay(this::evictIdle, idleTimeout, idleTimeout / 2, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets an open connection to the given address, preferring the one with the fewest requests in flight.
+     * Must be given back with release or invalidate.
+     * @throws IOException if it wasn't possible to connect to the peer
+     * @throws TimeoutException if the connections to the peer took too long to be established
+     */
+    public SSLClient acquire(InetSocketAddress address) throws Exception {
+        PeerConnections connections = peers.computeIfAbsent(address, (InetSocketAddress a) -> new PeerConnections());
+
+        long deadline = System.currentTimeMillis() + acquireTimeout;
+        int generation;
+        synchronized (connections) {
+            while (true) {
+                connections.open.removeIf((SSLClient client) -> !client.isOpen());
+
+                SSLClient best = null;
+                for (SSLClient client : connections.open)
+                    if (best == null || client.getLeases() < best.getLeases()) best = client;
+
+                boolean canOpen = connections.open.size() + connections.opening < maxConnectionsPerPeer;
+                if (best != null && (best.getLeases() < maxRequestsPerConnection || !canOpen)) {
+                    best.lease();
+                    return best;
+                }
+
+                if (canOpen) break;
+
+                // every connection is still being established
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) throw new TimeoutException("Timed out waiting for a connection to " + address);
+                connections.wait(remaining);
+            }
+            connections.opening++;
+            generation = connections.generation;
+        }
+
+        Logger.debug(DebugType.POOL, "Opening new connection to " + address);
+        SSLClient client = null;
+        try {
+            client = new SSLClient(address.getAddress().getHostAddress(), address.getPort());
+            if (!client.connect()) throw new IOException("Handshake with " + address + " failed.");
+        } catch (Exception e) {
+            if (client != null) client.close();
+            synchronized (connections) {
+                connections.opening--;
+                connections.notifyAll();
+            }
+            throw e;
+        }
+
+        client.lease();
+        synchronized (connections) {
+            connections.opening--;
+            // if the peer went down in the meantime the connection is only used this time
+            if (generation == connections.generation) connections.open.add(client);
+            connections.notifyAll();
+        }
+        return client;
+    }
+
+    /**
+     * Gives back a connection that was acquired, after its request is complete
+     */
+    public void release(SSLClient client) {
+        client.unlease();
+        if (client.getLeases() == 0 && !isPooled(client)) client.close();
+    }
+
+    /**
+     * Gives back a connection that was acquired and that can't be reused (for example, because a write failed)
+     */
+    public void invalidate(SSLClient client) {
+        client.unlease();
+        PeerConnections connections = peers.get(client.getInetSocketAddress());
+        if (connections != null) {
+            synchronized (connections) {
+                connections.open.remove(client);
+            }
+        }
+        client.close();
+    }
+
+    /**
+     * Drops every connection to a peer that is known to be down
+     */
+    public void removePeer(InetSocketAddress address) {
+        PeerConnections connections = peers.get(address);
+        if (connections == null) return;
+
+        Logger.debug(DebugType.POOL, "Dropping connections to " + address);
+        List<SSLClient> dropped;
+        synchronized (connections) {
+            connections.generation++;
+            dropped = new ArrayList<>(connections.open);
+            connections.open.clear();
+        }
+        for (SSLClient client : dropped) client.close();
+    }
+
+    private boolean isPooled(SSLClient client) {
+        PeerConnections connections = peers.get(client.getInetSocketAddress());
+        if (connections == null) return false;
+        synchronized (connections) {
+            return connections.open.contains(client);
+        }
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        List<SSLClient> evicted = new ArrayList<>();
+        for (Map.Entry<InetSocketAddress, PeerConnections> entry : peers.entrySet()) {
+            PeerConnections connections = entry.getValue();
+            synchronized (connections) {
+                connections.open.removeIf((SSLClient client) -> {
+                    if (client.isOpen() && (client.getLeases() > 0 || now - client.getLastUsed() < idleTimeout)) return false;
+
+                    Logger.debug(DebugType.POOL, "Evicting idle connection to " + entry.getKey());
+                    evicted.add(client);
+                    return true;
+                });
+            }
+        }
+        for (SSLClient client : evicted) client.close();
+    }
+
+    public void destroy() {
+        evictor.shutdown();
+        for (InetSocketAddress address : peers.keySet()) removePeer(address);
+    }
+
+    private static class PeerConnections {
+        private final List<SSLClient> open = new ArrayList<>();
+        private int opening = 0;
+        private int generation = 0;
+    }
+}
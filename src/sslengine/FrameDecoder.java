@@ -0,0 +1,66 @@
+package sslengine;
+
+import messages.Message;
+import messages.MessageParser;
+import utils.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Splits the application data received in a connection into messages.
+ * Each message is preceded by its length (4 bytes, big endian), so a message can span several
+ * TLS records and a TLS record can hold several messages.
+ */
+public class FrameDecoder {
+    public static final int HEADER_SIZE = 4;
+    public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    private final Queue<Message> messages = new ArrayDeque<>();
+    private byte[] frame = null;
+    private int framePosition = 0;
+
+    /**
+     * Consumes the given data, decoding every message that becomes complete.
+     * @throws IOException if the data doesn't follow the frame format
+     */
+    public void feed(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            if (frame == null) {
+                while (header.hasRemaining() && data.hasRemaining()) header.put(data.get());
+                if (header.hasRemaining()) return;
+
+                header.flip();
+                int length = header.getInt();
+                header.clear();
+
+                if (length <= 0 || length > MAX_FRAME_SIZE) throw new IOException("Received frame with invalid length (" + length + ")");
+                frame = new byte[length];  // the message's body will be a slice of it, so it's never reused
+                framePosition = 0;
+            }
+
+            int amount = Math.min(data.remaining(), frame.length - framePosition);
+            data.get(frame, framePosition, amount);
+            framePosition += amount;
+
+            if (framePosition == frame.length) {
+                try {
+                    messages.add(MessageParser.parse(frame, frame.length));
+                } catch (Exception e) {
+                    Logger.error("parsing received message", e, false);
+                }
+                frame = null;
+            }
+        }
+    }
+
+    /**
+     * @return the oldest message that was decoded and not yet retrieved, or null if there is none
+     */
+    public Message poll() {
+        return messages.poll();
+    }
+}
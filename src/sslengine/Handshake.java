@@ -0,0 +1,169 @@
+package sslengine;
+
+import utils.Logger;
+import utils.Logger.DebugType;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Handshake of a connection driven by the readiness events of its selector, so that the selector's thread
+ * never waits for the other side: each step goes as far as it can and then waits for the socket to be
+ * readable or writable. Delegated tasks run in a shared pool, after which the handshake is resumed.
+ */
+public class Handshake {
+    public enum Status {
+        WAITING,
+        FINISHED,
+        FAILED
+    }
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SSLConnection connection;
+    private final SelectionKey key;
+    private final Executor tasks;
+    private final long start = System.currentTimeMillis(), startNanos = System.nanoTime();
+    private ByteBuffer netData, appData;
+
+    /**
+     * @param key key of the connection's socket in the selector that drives the handshake
+     * @param tasks executor for the engine's delegated tasks
+     */
+    public Handshake(SSLConnection connection, SelectionKey key, Executor tasks) {
+        this.connection = connection;
+        this.key = key;
+        this.tasks = tasks;
+
+        SSLEngine engine = connection.getEngine();
+        this.netData = SSLPeer.buffers.acquireNet(engine.getSession().getPacketBufferSize());
+        this.appData = SSLPeer.buffers.acquireApp(engine.getSession().getApplicationBufferSize());
+        this.netData.flip();  // nothing to write yet
+    }
+
+    public SSLConnection getConnection() {
+        return connection;
+    }
+
+    public SelectionKey getKey() {
+        return key;
+    }
+
+    /**
+     * Advances the handshake as far as possible without waiting
+     * @param resume called (in any thread) when the handshake can advance after the delegated tasks are run
+     */
+    public Status step(Runnable resume) throws IOException {
+        SSLEngine engine = connection.getEngine();
+
+        if (!flush()) return waitFor(SelectionKey.OP_WRITE);
+
+        while (true) {
+            SSLEngineResult result;
+            switch (engine.getHandshakeStatus()) {
+                case NEED_WRAP:
+                    netData.clear();
+                    result = engine.wrap(EMPTY, netData);
+                    netData.flip();
+
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+                        throw new SSLException("Buffer overflow occurred after a wrap to a buffer of the packet size.");
+
+                    if (!flush()) return waitFor(SelectionKey.OP_WRITE);
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) return Status.FAILED;
+                    break;
+
+                case NEED_UNWRAP: case NEED_UNWRAP_AGAIN:
+                    ByteBuffer peerNetData = connection.getPeerNetData();
+                    peerNetData.flip();
+                    result = engine.unwrap(peerNetData, appData);
+                    peerNetData.compact();
+
+                    switch (result.getStatus()) {
+                        case OK:
+                            break;
+
+                        case BUFFER_UNDERFLOW:
+                            // the rest of the record must be read
+                            if (!peerNetData.hasRemaining()) {
+                                ByteBuffer replaceBuffer = SSLPeer.increaseBufferSize(peerNetData, engine.getSession().getPacketBufferSize());
+                                peerNetData.flip();
+                                replaceBuffer.put(peerNetData);
+                                connection.setPeerNetData(replaceBuffer);
+                                SSLPeer.buffers.release(peerNetData);
+                                peerNetData = replaceBuffer;
+                            }
+
+                            int bytesRead = connection.getSocket().read(peerNetData);
+                            if (bytesRead < 0) return Status.FAILED;
+                            if (bytesRead == 0) return waitFor(SelectionKey.OP_READ);
+                            break;
+
+                        case BUFFER_OVERFLOW:
+                            ByteBuffer replaceBuffer = SSLPeer.increaseBufferSize(appData, engine.getSession().getApplicationBufferSize());
+                            SSLPeer.buffers.release(appData);
+                            appData = replaceBuffer;
+                            break;
+
+                        case CLOSED:
+                            return Status.FAILED;
+                    }
+                    break;
+
+                case NEED_TASK:
+                    runTasks(resume);
+                    return waitFor(0);
+
+                default:  // FINISHED or NOT_HANDSHAKING
+                    SSLPeer.recordHandshake(engine, start, System.nanoTime() - startNanos);
+                    return Status.FINISHED;
+            }
+        }
+    }
+
+    private void runTasks(Runnable resume) {
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        Runnable task;
+        while ((task = connection.getEngine().getDelegatedTask()) != null)
+            futures.add(CompletableFuture.runAsync(task, tasks));
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).whenComplete((Void v, Throwable e) -> {
+            if (e != null) Logger.error("running delegated task of handshake", e, false);
+            resume.run();
+        });
+    }
+
+    /**
+     * @return true if all the handshake data that was wrapped was written
+     */
+    private boolean flush() throws IOException {
+        while (netData.hasRemaining()) {
+            if (connection.getSocket().write(netData) == 0) return false;
+        }
+        return true;
+    }
+
+    private Status waitFor(int ops) {
+        Logger.debug(DebugType.SSL, "Handshake waiting for " + (ops == 0 ? "tasks" : ops == SelectionKey.OP_READ ? "read" : "write"));
+        key.interestOps(ops);
+        return Status.WAITING;
+    }
+
+    /**
+     * Gives the handshake's buffers back to the pool (the connection's buffers are kept)
+     */
+    public void release() {
+        SSLPeer.buffers.release(netData);
+        SSLPeer.buffers.release(appData);
+        netData = null;
+        appData = null;
+    }
+}
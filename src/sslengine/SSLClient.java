@@ -2,19 +2,32 @@ package sslengine;
 
 import chord.ChordNode;
 import messages.Message;
-import messages.MessageParser;
+import sslengine.queue.MessageAction;
 import sslengine.queue.MessageQueue;
 import utils.Logger;
 import utils.Logger.DebugType;
+import utils.Threads;
 
-import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 public class SSLClient extends SSLPeer{
@@ -23,8 +36,21 @@ public class SSLClient extends SSLPeer{
     private final int port;
     private final SSLEngine engine;
     private SocketChannel socket;
+    private SSLConnection connection;
+    private volatile int messagesSent = 0;
+    private volatile boolean closing = false;
+    private volatile long lastUsed = System.currentTimeMillis();
+    private final AtomicInteger leases = new AtomicInteger(0), lastRequestId = new AtomicInteger(0);
+    private final Map<Integer, CompletableFuture<Message>> inFlight = new ConcurrentHashMap<>();
+    private final static int CONNECT_TIMEOUT = 3000, REPLY_TIMEOUT = 8000, CLOSE_TIMEOUT = 3000;
+    public final static ClientSelector selector = new ClientSelector();
+    public final static ConnectionPool pool = new ConnectionPool(4, 64, 30000);
     public final static MessageQueue queue = new MessageQueue();
 
+    /* Replies are handled here, never in the selector's thread (or the timeout's), which would stop reading
+       every other connection while the handler blocks, or deadlock if it needs the selector to connect */
+    private final static ExecutorService callbacks = Threads.newElasticPool("client-reply");
+
     public SSLClient(String address, int port) throws Exception {
         this("TLSv1.2", address, port);
     }
@@ -33,71 +59,221 @@ public class SSLClient extends SSLPeer{
         this.address = address;
         this.port = port;
 
-        SSLContext context = SSLContext.getInstance(protocol);
-        initContext(context);
-
-        this.engine = context.createSSLEngine(address, port);
+        this.engine = getContext(protocol).createSSLEngine(address, port);
         this.engine.setUseClientMode(true);
     }
 
     public boolean connect() throws IOException{
         this.socket = SocketChannel.open();
         this.socket.configureBlocking(false);
-        this.socket.connect(new InetSocketAddress(this.address, this.port));
 
-        boolean loop = this.socket.finishConnect();
-        while (!loop) loop = this.socket.finishConnect();
+        if (!this.socket.connect(new InetSocketAddress(this.address, this.port))) {
+            try {
+                selector.connect(this.socket).get(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                this.socket.close();
+                throw new SocketTimeoutException("Timed out connecting to " + this.address + ":" + this.port);
+            } catch (ExecutionException e) {
+                this.socket.close();
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                this.socket.close();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while connecting to " + this.address + ":" + this.port);
+            }
+        }
 
         this.engine.beginHandshake();
-        return this.executeHandshake(socket, this.engine);
+        this.connection = new SSLConnection(this.socket, this.engine);
+        boolean handshaken = false;
+        try {
+            handshaken = this.executeHandshake(this.connection);
+        } finally {
+            if (!handshaken) {
+                this.connection.release();
+                this.socket.close();
+            }
+        }
+        if (!handshaken) return false;
+
+        selector.register(this);
+        return true;
     }
 
+    /**
+     * Queues the message in the connection, which the selector finishes writing when the socket is full
+     */
     public void write(Message message) throws Exception {
-        write(this.socket, this.engine, message.getBytes());
-    }
-
-    public Message readReply(int maxCount) throws InterruptedException {
-        int count = 0;
-        int previousValue = 125;
-        while (true) {
-            try
-            {
-                ReadResult data = read(socket, engine);
-                if (data.getBytesRead() <= 0) throw new Exception();
-                return MessageParser.parse(data.getData().array(), data.getBytesRead());
-            } 
-            catch (Exception e)
-            {
-                count++;
-                if (count > maxCount) break; // couldn't read reply
-                previousValue *= 2;
-                Thread.sleep(previousValue);  // TODO remove
-            }
+        enqueue(this.connection, Collections.singletonList(message.getBuffers()));
+        messagesSent++;
+    }
+
+    public void write(List<ByteBuffer[]> messages) throws Exception {
+        enqueue(this.connection, messages);
+        messagesSent += messages.size();
+    }
+
+    public InetSocketAddress getInetSocketAddress() {
+        return new InetSocketAddress(this.address, this.port);
+    }
+
+    public boolean isOpen() {
+        return !closing && socket != null && socket.isOpen() && !engine.isOutboundDone() && !engine.isInboundDone();
+    }
+
+    /**
+     * @return whether this connection was already used to send messages (it came from the pool)
+     */
+    public boolean wasUsed() {
+        return messagesSent > 0;
+    }
+
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * @return amount of users of this connection (requests in flight or being sent)
+     */
+    public int getLeases() {
+        return leases.get();
+    }
+
+    public void lease() {
+        leases.incrementAndGet();
+    }
+
+    public void unlease() {
+        leases.decrementAndGet();
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    public SocketChannel getSocket() {
+        return socket;
+    }
+
+    public boolean hasPendingData() {
+        return connection.hasPendingData();
+    }
+
+    /**
+     * Called by the selector once the connection is registered in it
+     */
+    void setKey(SelectionKey key) throws IOException {
+        connection.setKey(key);
+    }
+
+    /**
+     * Called by the selector when the socket accepts the records that are waiting in the connection
+     */
+    void onWritable() {
+        try {
+            // once the close_notify is written, the connection is done
+            if (connection.flush() && engine.isOutboundDone()) finishClose();
+        } catch (IOException e) {
+            Logger.error("writing to " + address + ":" + port, e, false);
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+            failInFlight();
         }
-        return null;
     }
 
-    public static void send(ScheduledThreadPoolExecutor scheduler, SSLClient client, Message message, Consumer<Message> onComplete, boolean wantReply) throws Exception {
-        client.write(message);
+    /**
+     * Called by the selector when there is data to read in the connection
+     */
+    void onReadable() {
+        try {
+            if (read(connection) < 0) {
+                failInFlight();  // the connection was closed, the replies won't come
+                return;
+            }
 
-        scheduler.execute(() -> {
+            Message reply;
+            while ((reply = connection.getDecoder().poll()) != null) {
+                CompletableFuture<Message> future = inFlight.remove(reply.getRequestId());
+                if (future != null) future.complete(reply);
+                else Logger.debug(DebugType.SSL, "Received a reply that nobody was waiting for (it may have timed out): " + reply);
+            }
+        } catch (Exception e) {
+            Logger.error("reading reply", e, false);
             try {
-                Message reply = client.readReply(5);
+                socket.close();
+            } catch (IOException ignored) {}
+            failInFlight();
+        }
+    }
 
-                if (reply != null || !wantReply) {
-                    onComplete.accept(reply);
-                    return;
-                }
+    private void failInFlight() {
+        for (Integer requestId : inFlight.keySet()) {
+            CompletableFuture<Message> future = inFlight.remove(requestId);
+            if (future != null) future.complete(null);
+        }
+    }
 
-                throw new Exception("Couldn't get a reply to message: " + message.toString().trim());
-            } catch (Exception e) {
-                Logger.error("reading reply to message in send method of SSLClient", e, false);
-                onComplete.accept(null);
+    public static void send(SSLClient client, Message message, Consumer<Message> onComplete, boolean wantReply) throws Exception {
+        send(client, Collections.singletonList(new MessageAction(message, client, onComplete, wantReply)),
+            (MessageAction action, Message reply) -> onComplete.accept(reply));
+    }
+
+    /**
+     * Sends the messages of the actions through the client's connection in a single write
+     * @param onComplete called for each action with its reply (null if it doesn't want one or if it didn't arrive)
+     */
+    public static void send(SSLClient client, List<MessageAction> actions, BiConsumer<MessageAction, Message> onComplete) throws Exception {
+        List<ByteBuffer[]> data = new ArrayList<>(actions.size());
+        int[] requestIds = new int[actions.size()];
+        List<CompletableFuture<Message>> futures = new ArrayList<>(actions.size());
+
+        for (int i = 0; i < actions.size(); i++) {
+            MessageAction action = actions.get(i);
+            if (action.wantsReply()) {
+                // the reply carries the id of the request, so several requests can be in flight in the same connection
+                requestIds[i] = client.lastRequestId.updateAndGet((int id) -> id == Integer.MAX_VALUE ? 1 : id + 1);
+                CompletableFuture<Message> future = new CompletableFuture<>();
+                client.inFlight.put(requestIds[i], future);
+                futures.add(future);
+            }
+            else futures.add(null);
+
+            Message message = action.getMessage();
+            synchronized (message) {  // the same message may be sent to other peers at the same time
+                // (a message that doesn't want a reply has no id, so that an unexpected reply can't be taken for another's)
+                data.add(message.setRequestId(requestIds[i]).getBuffers());
+            }
+        }
+
+        try {
+            client.write(data);
+        } catch (Exception e) {
+            for (int requestId : requestIds) if (requestId != 0) client.inFlight.remove(requestId);
+            throw e;
+        }
+
+        for (int i = 0; i < actions.size(); i++) {
+            MessageAction action = actions.get(i);
+            int requestId = requestIds[i];
+            CompletableFuture<Message> future = futures.get(i);
+
+            if (future == null) {
+                onComplete.accept(action, null);
+                continue;
             }
-        });
+
+            future.completeOnTimeout(null, REPLY_TIMEOUT, TimeUnit.MILLISECONDS).thenAcceptAsync((Message reply) -> {
+                client.inFlight.remove(requestId, future);
+                if (reply == null) Logger.error("Couldn't get a reply to message: " + action.getMessage().toString().trim());
+
+                try {
+                    onComplete.accept(action, reply);
+                } catch (Exception e) {
+                    Logger.error("handling reply to " + action.getMessage(), e, true);
+                }
+            }, callbacks);
+        }
     }
 
-    public static Future<Message> sendQueued(ChordNode node, Message message, boolean wantReply) {
+    public static CompletableFuture<Message> sendQueued(ChordNode node, Message message, boolean wantReply) {
         return runSendQueueTask((CompletableFuture<Message> future) -> {
             try {
                 queue.push(node, message, wantReply ? future::complete : null);
@@ -107,7 +283,7 @@ public class SSLClient extends SSLPeer{
         }, wantReply);
     }
 
-    public static Future<Message> sendQueued(InetSocketAddress address, Message message, boolean wantReply) {
+    public static CompletableFuture<Message> sendQueued(InetSocketAddress address, Message message, boolean wantReply) {
         return runSendQueueTask((CompletableFuture<Message> future) -> {
             try {
                 queue.push(address, message, wantReply ? future::complete : null);
@@ -117,7 +293,7 @@ public class SSLClient extends SSLPeer{
         }, wantReply);
     }
 
-    public static Future<Message> runSendQueueTask(Consumer<CompletableFuture<Message>> consumer, boolean wantReply) {
+    public static CompletableFuture<Message> runSendQueueTask(Consumer<CompletableFuture<Message>> consumer, boolean wantReply) {
         CompletableFuture<Message> future = new CompletableFuture<>();
 
         consumer.accept(future);
@@ -126,9 +302,51 @@ public class SSLClient extends SSLPeer{
         return future;
     }
 
-    public void shutdown() throws IOException {
+    /**
+     * Closes the connection through the selector, after the records that are waiting in its queue are written
+     * (so messages sent just before, that don't want a reply, aren't lost)
+     */
+    public void close() {
+        closing = true;
+        failInFlight();
+        if (connection != null) selector.close(this, CLOSE_TIMEOUT);
+    }
+
+    /**
+     * Called when the engine is closed by the other side or the stream ends
+     */
+    @Override
+    protected void closeConnection(SocketChannel socketChannel, SSLEngine engine) {
+        close();
+    }
+
+    /**
+     * Called by the selector to start closing the connection: the close_notify is queued after the records
+     * that are waiting, and the socket is closed once everything is written
+     */
+    void onClose() {
+        if (connection.isReleased()) return;
+
         Logger.debug(DebugType.SSL, "Going to close connection with the server...");
-        this.closeConnection(this.socket, this.engine);
-        this.executor.shutdown();
+        try {
+            enqueueClose(connection);
+            if (connection.flush()) finishClose();
+        } catch (IOException e) {
+            Logger.debug(DebugType.SSL, "Couldn't close connection cleanly: " + e.getMessage());
+            finishClose();
+        }
+    }
+
+    /**
+     * Closes the socket and gives back the connection's buffers, dropping whatever wasn't written yet.
+     * Runs in the selector's thread, so that it never happens in the middle of a read or write.
+     */
+    void finishClose() {
+        SelectionKey key = connection.getKey();
+        if (key != null) key.cancel();
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+        connection.release();
     }
 }
@@ -0,0 +1,143 @@
+package sslengine;
+
+import javax.net.ssl.SSLEngine;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * State of a TLS connection that must outlive a single read or write: the bytes of TLS records that
+ * weren't completely received yet, the decoder of the messages' frames and the records waiting to be written.
+ */
+public class SSLConnection {
+    private final SocketChannel socket;
+    private final SSLEngine engine;
+    private final FrameDecoder decoder = new FrameDecoder();
+    private ByteBuffer peerNetData, peerAppData;
+    private boolean released = false;
+
+    /* Records waiting for the socket to be writable (guarded by itself) */
+    private final Queue<ByteBuffer> outbound = new ArrayDeque<>();
+    private SelectionKey key = null;
+
+    public SSLConnection(SocketChannel socket, SSLEngine engine) {
+        this.socket = socket;
+        this.engine = engine;
+        this.peerNetData = SSLPeer.buffers.acquireNet(engine.getSession().getPacketBufferSize());
+        this.peerAppData = SSLPeer.buffers.acquireApp(engine.getSession().getApplicationBufferSize());
+    }
+
+    public SocketChannel getSocket() {
+        return socket;
+    }
+
+    public SSLEngine getEngine() {
+        return engine;
+    }
+
+    public FrameDecoder getDecoder() {
+        return decoder;
+    }
+
+    /**
+     * @return buffer with the received bytes that weren't unwrapped yet (in write mode)
+     */
+    public ByteBuffer getPeerNetData() {
+        return peerNetData;
+    }
+
+    public void setPeerNetData(ByteBuffer peerNetData) {
+        this.peerNetData = peerNetData;
+    }
+
+    public ByteBuffer getPeerAppData() {
+        return peerAppData;
+    }
+
+    public void setPeerAppData(ByteBuffer peerAppData) {
+        this.peerAppData = peerAppData;
+    }
+
+    /**
+     * Sets the key of the connection in the selector that writes the outbound queue when the socket is writable
+     */
+    public void setKey(SelectionKey key) throws IOException {
+        synchronized (outbound) {
+            this.key = key;
+            if (!outbound.isEmpty()) setWriteInterest(true);
+        }
+    }
+
+    public SelectionKey getKey() {
+        synchronized (outbound) {
+            return key;
+        }
+    }
+
+    /**
+     * Adds records (in read mode) to the outbound queue. If nothing was waiting, the socket is given what it accepts right away.
+     */
+    public void enqueue(ByteBuffer records) throws IOException {
+        synchronized (outbound) {
+            outbound.add(records);
+            if (outbound.size() == 1) flush();
+        }
+    }
+
+    /**
+     * Writes the queued records until the socket doesn't accept more, in which case the selector
+     * is asked to tell when it is writable again
+     * @return true if the queue was emptied
+     */
+    public boolean flush() throws IOException {
+        synchronized (outbound) {
+            ByteBuffer records;
+            while ((records = outbound.peek()) != null) {
+                socket.write(records);
+                if (records.hasRemaining()) {
+                    setWriteInterest(true);
+                    return false;
+                }
+                SSLPeer.buffers.release(outbound.poll());
+            }
+            setWriteInterest(false);
+            return true;
+        }
+    }
+
+    private void setWriteInterest(boolean write) {
+        if (key == null || !key.isValid()) return;
+
+        int ops = write ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+        if (key.interestOps() == ops) return;
+
+        key.interestOps(ops);
+        if (write) key.selector().wakeup();
+    }
+
+    public boolean hasPendingData() {
+        return !released && peerNetData.position() > 0;
+    }
+
+    public synchronized boolean isReleased() {
+        return released;
+    }
+
+    /**
+     * Gives the buffers back to the pool, after the connection is closed.
+     * Reads hold the connection's lock, so this never happens in the middle of one.
+     */
+    public synchronized void release() {
+        if (released) return;
+        released = true;
+        SSLPeer.buffers.release(peerNetData);
+        SSLPeer.buffers.release(peerAppData);
+        synchronized (outbound) {
+            ByteBuffer records;
+            while ((records = outbound.poll()) != null) SSLPeer.buffers.release(records);
+        }
+    }
+}
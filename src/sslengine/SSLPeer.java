@@ -7,290 +7,522 @@ import javax.net.ssl.*;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.security.KeyStore;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public abstract class SSLPeer {
 
-    /* Executor for handshake tasks */
-    protected ExecutorService executor = Executors.newSingleThreadExecutor();
+    /* Executor for the delegated tasks of handshakes, shared by every connection */
+    protected static final ExecutorService executor = createHandshakeExecutor();
+    private static final int HANDSHAKE_QUEUE_SIZE = 1024;
+
+    /* Buffers for wrapping and unwrapping, shared by every connection */
+    public static final BufferPool buffers = new BufferPool(64);
+
+    /* Maximum amount of TLS records given to the socket in each write, when several messages are written together */
+    private static final int RECORDS_PER_WRITE = 8;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /* Contexts are shared by every connection, so that the keystores are only loaded once and sessions can be resumed */
+    private static final Map<String, SSLContext> contexts = new ConcurrentHashMap<>();
+    private static final int SESSION_CACHE_SIZE = 256, SESSION_TIMEOUT = 24 * 60 * 60;  // seconds
+
+    private static final AtomicLong fullHandshakes = new AtomicLong(0), resumedHandshakes = new AtomicLong(0),
+        handshakeNanos = new AtomicLong(0), maxHandshakeNanos = new AtomicLong(0);
+
+    /**
+     * Bounded pool: when the queue is full, the thread that runs the handshake runs the task itself
+     */
+    private static ExecutorService createHandshakeExecutor() {
+        int threads = Runtime.getRuntime().availableProcessors();
+        AtomicInteger count = new AtomicInteger(0);
+        ThreadFactory factory = (Runnable runnable) -> {
+            Thread thread = new Thread(runnable, "handshake-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(HANDSHAKE_QUEUE_SIZE), factory, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    protected static SSLContext getContext(String protocol) throws Exception {
+        SSLContext context = contexts.get(protocol);
+        if (context != null) return context;
 
-    private final Object wrapLock = new Object(), unwrapLock = new Object();
+        synchronized (contexts) {
+            context = contexts.get(protocol);
+            if (context == null) {
+                context = SSLContext.getInstance(protocol);
+                initContext(context);
+                contexts.put(protocol, context);
+            }
+        }
+        return context;
+    }
 
-    protected static void initContext(SSLContext context) throws Exception {
+    private static void initContext(SSLContext context) throws Exception {
         context.init(createKeyManagers("../sslengine/keys/client.jks", "123456", "123456"), 
             createTrustManagers("../sslengine/keys/truststore.jks", "123456"), 
             new SecureRandom());
+
+        // client sessions are cached by the address of the peer (given when the engine is created)
+        for (SSLSessionContext sessionContext : new SSLSessionContext[]{ context.getClientSessionContext(), context.getServerSessionContext() }) {
+            sessionContext.setSessionCacheSize(SESSION_CACHE_SIZE);
+            sessionContext.setSessionTimeout(SESSION_TIMEOUT);
+        }
     }
 
-    public static boolean isAlive(InetSocketAddress address) {
-        try (Socket ignored = new Socket(address.getAddress().getHostAddress(), address.getPort())) {
-            return true;
-        } catch (Exception ignored) {}
-        return false;
+    public static long getFullHandshakes() {
+        return fullHandshakes.get();
     }
-    
-    public void write(SocketChannel socket, SSLEngine engine, byte[] message) throws Exception {
-        Logger.debug(DebugType.SSL, "Going to write to the client...");
 
-        ByteBuffer appData = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
-        ByteBuffer netData = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+    public static long getResumedHandshakes() {
+        return resumedHandshakes.get();
+    }
 
-        int totalAmount = 0;
-        while (totalAmount < message.length)
-        {
-            appData.clear();
+    public static double getAverageHandshakeMillis() {
+        long handshakes = fullHandshakes.get() + resumedHandshakes.get();
+        return handshakes == 0 ? 0 : handshakeNanos.get() / 1e6 / handshakes;
+    }
 
-            int amount = Math.min(appData.remaining(), message.length - totalAmount);
+    public static double getMaxHandshakeMillis() {
+        return maxHandshakeNanos.get() / 1e6;
+    }
 
-//            Logger.log("appData remaining = " + appData.remaining() + "sending " + amount + " bytes (" + (totalAmount + amount) + "/" + message.length + ")");
+    public static String getHandshakeStats() {
+        return String.format("handshakes: full=%d resumed=%d avg=%.1fms max=%.1fms",
+            getFullHandshakes(), getResumedHandshakes(), getAverageHandshakeMillis(), getMaxHandshakeMillis());
+    }
 
-            appData.put(message, totalAmount, amount);
-            appData.flip();
+    /**
+     * @param startMillis when the handshake started (a resumed session was created before it)
+     * @param nanos how long it took
+     */
+    protected static void recordHandshake(SSLEngine engine, long startMillis, long nanos) {
+        boolean resumed = engine.getSession().getCreationTime() < startMillis;
+        if (resumed) resumedHandshakes.incrementAndGet();
+        else fullHandshakes.incrementAndGet();
 
-            totalAmount += amount;
+        handshakeNanos.addAndGet(nanos);
+        maxHandshakeNanos.accumulateAndGet(nanos, Math::max);
 
-            while (appData.hasRemaining()) {
-                netData.clear();
-                synchronized (wrapLock) {
-                    SSLEngineResult result = engine.wrap(appData, netData);
+        Logger.debug(DebugType.SSL, "Finalized " + (resumed ? "resumed" : "full") + " handshake in " + nanos / 1000000 + "ms (" + getHandshakeStats() + ")");
+    }
 
-                    switch (result.getStatus()) {
-                        case OK:
-                            netData.flip();
+    /**
+     * Wraps the messages and puts their records in the connection's outbound queue, instead of waiting for the socket to accept them.
+     * The socket is given what it accepts right away, and the rest is written by the connection's selector when it is writable.
+     * The messages are packed in as few TLS records as possible, and several records are given to the socket in each write.
+     * @param messages buffers of each message (see Message.getBuffers), which are consumed
+     */
+    public void enqueue(SSLConnection connection, List<ByteBuffer[]> messages) throws Exception {
+        Logger.debug(DebugType.SSL, "Going to queue a write to the client...");
+
+        // the messages are wrapped at once, so that the records of messages written concurrently to the same connection aren't mixed
+        synchronized (connection.getEngine()) {
+            RecordWriter writer = new RecordWriter(connection, messages.size() > 1 ? RECORDS_PER_WRITE : 1);
+            try {
+                writer.write(messages);
+            } finally {
+                writer.release();
+            }
+        }
+    }
 
-                            while (netData.hasRemaining())
-                                socket.write(netData);
+    /**
+     * Closes the outbound side of the connection, putting its close_notify in the outbound queue after the records
+     * that are already waiting there (which were wrapped before it, so they must reach the other side first)
+     */
+    protected void enqueueClose(SSLConnection connection) throws IOException {
+        SSLEngine engine = connection.getEngine();
+        synchronized (engine) {
+            if (engine.isOutboundDone()) return;
+            engine.closeOutbound();
+
+            ByteBuffer netData = buffers.acquireNet(engine.getSession().getPacketBufferSize());
+            try {
+                while (!engine.isOutboundDone()) {
+                    SSLEngineResult result = engine.wrap(EMPTY, netData);
+                    if (result.getStatus() != SSLEngineResult.Status.CLOSED && result.getStatus() != SSLEngineResult.Status.OK)
+                        throw new SSLException("Couldn't wrap close_notify: " + result.getStatus());
+                }
+                netData.flip();
+
+                // the buffer now belongs to the queue
+                ByteBuffer records = netData;
+                netData = null;
+                connection.enqueue(records);
+            } finally {
+                if (netData != null) buffers.release(netData);
+            }
+        }
+    }
 
-                            Logger.debug(DebugType.SSL, "Sent to the client " + new String(message));
+    /**
+     * Wraps messages into TLS records. The records are only handed over to the connection's outbound queue
+     * when there isn't space for another one in the buffer.
+     * The messages' buffers are wrapped directly (a gathering wrap), so their bytes are only copied by the engine.
+     */
+    private class RecordWriter {
+        private final SocketChannel socket;
+        private final SSLEngine engine;
+        private final SSLConnection outbound;
+        private final int packetSize, netCapacity;
+        private ByteBuffer netData;
+
+        /**
+         * @param outbound connection whose outbound queue gets the records
+         * @param records amount of records that fit in the buffer
+         */
+        private RecordWriter(SSLConnection outbound, int records) {
+            this.socket = outbound.getSocket();
+            this.engine = outbound.getEngine();
+            this.outbound = outbound;
+            this.packetSize = engine.getSession().getPacketBufferSize();
+            this.netCapacity = packetSize * records;
+            this.netData = buffers.acquireNet(netCapacity);
+        }
 
-                            break;
+        private void write(List<ByteBuffer[]> messages) throws Exception {
+            // each message is framed with its length so that the other side knows where it ends
+            ByteBuffer lengths = ByteBuffer.allocate(messages.size() * FrameDecoder.HEADER_SIZE);
+            List<ByteBuffer> sources = new ArrayList<>(messages.size() * 3);
 
-                        case CLOSED:
-                            this.closeConnection(socket, engine);
-                            return;
+            for (ByteBuffer[] message : messages) {
+                int length = 0;
+                for (ByteBuffer buffer : message) length += buffer.remaining();
 
-                        case BUFFER_UNDERFLOW:
-                            throw new SSLException("Buffer underflow occurred after a wrap.");
+                sources.add(lengths.slice().putInt(length).flip());
+                lengths.position(lengths.position() + FrameDecoder.HEADER_SIZE);
+                Collections.addAll(sources, message);
+            }
 
-                        case BUFFER_OVERFLOW:
-                            netData = increaseBufferSize(netData, engine.getSession().getPacketBufferSize());
-                            break;
+            if (!wrap(sources.toArray(new ByteBuffer[0]))) return;
+            flush();
 
-                        default:
-                            throw new IllegalStateException("Invalid SSL status: " + result.getStatus());
-                    }
+            Logger.debug(DebugType.SSL, "Sent " + messages.size() + " message(s) to the client");
+        }
+
+        /**
+         * Wraps all the data of the buffers, in order, packing it in as few records as possible
+         * @return false if the connection was closed
+         */
+        private boolean wrap(ByteBuffer[] sources) throws Exception {
+            int first = 0;
+            while (true) {
+                while (first < sources.length && !sources[first].hasRemaining()) first++;
+                if (first == sources.length) return true;
+
+                if (netData.remaining() < packetSize) flush();
+
+                SSLEngineResult result = engine.wrap(sources, first, sources.length - first, netData);
+
+                switch (result.getStatus()) {
+                    case OK:
+                        break;
+
+                    case CLOSED:
+                        closeConnection(socket, engine);
+                        return false;
+
+                    case BUFFER_UNDERFLOW:
+                        throw new SSLException("Buffer underflow occurred after a wrap.");
+
+                    case BUFFER_OVERFLOW:
+                        if (netData.position() == 0) throw new SSLException("Buffer overflow occurred after a wrap to an empty buffer.");
+                        flush();
+                        break;
+
+                    default:
+                        throw new IllegalStateException("Invalid SSL status: " + result.getStatus());
                 }
             }
         }
-    }
 
-    protected ReadResult read(SocketChannel socket, SSLEngine engine) throws Exception {
-        Logger.debug(DebugType.SSL, "Going to read...");
+        private void flush() throws IOException {
+            if (netData.position() == 0) return;
+            netData.flip();
 
-        ByteBuffer peerAppData = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize()),
-            peerNetData = ByteBuffer.allocate(engine.getSession().getPacketBufferSize() * 2);
+            // the buffer now belongs to the queue, which gives it back to the pool once it is written
+            outbound.enqueue(netData);
+            netData = buffers.acquireNet(netCapacity);
+        }
 
-        int bytesRead = -1;
+        private void release() {
+            buffers.release(netData);
+        }
+    }
 
-        synchronized (unwrapLock) {
-            bytesRead = socket.read(peerNetData);
+    /**
+     * Reads everything that is available in the socket, decoding the messages that were completely received.
+     * The bytes of incomplete TLS records and frames are kept in the connection until the next read.
+     * @return the amount of bytes read, or -1 if the connection was closed
+     */
+    protected int read(SSLConnection connection) throws Exception {
+        Logger.debug(DebugType.SSL, "Going to read...");
 
-//            Logger.log("Read " + bytesRead + " bytes");
+        synchronized (connection) {
+            if (connection.isReleased()) return -1;
 
-            if (bytesRead > 0) {
-                peerNetData.flip();
+            // there may be data left from the handshake or from a previous read
+            if (!unwrap(connection)) return -1;
 
-                while (peerNetData.hasRemaining()) {
-                    peerAppData.clear();
-                    SSLEngineResult result = engine.unwrap(peerNetData, peerAppData);
+            int totalRead = 0, bytesRead;
+            while ((bytesRead = connection.getSocket().read(connection.getPeerNetData())) > 0) {
+                totalRead += bytesRead;
+                if (!unwrap(connection)) return -1;
+            }
 
-                    switch (result.getStatus()) {
-                        case OK:
-                            peerAppData.flip();
-                            bytesRead = result.bytesProduced();
-                            break;
+            if (bytesRead < 0) {
+                this.processEndOfStream(connection.getSocket(), connection.getEngine());
+                return -1;
+            }
+            return totalRead;
+        }
+    }
 
-                        case CLOSED:
-                            this.closeConnection(socket, engine);
-                            return new ReadResult(bytesRead, peerAppData);
+    /**
+     * Unwraps the complete TLS records that were received and feeds their data to the connection's decoder
+     * @return false if the connection was closed
+     */
+    private boolean unwrap(SSLConnection connection) throws Exception {
+        SSLEngine engine = connection.getEngine();
+        ByteBuffer peerNetData = connection.getPeerNetData();
+
+        peerNetData.flip();
+        while (peerNetData.hasRemaining()) {
+            ByteBuffer peerAppData = connection.getPeerAppData();
+            peerAppData.clear();
+            SSLEngineResult result = engine.unwrap(peerNetData, peerAppData);
+
+            switch (result.getStatus()) {
+                case OK:
+                    peerAppData.flip();
+                    connection.getDecoder().feed(peerAppData);
+                    break;
 
-                        case BUFFER_UNDERFLOW:
-                            peerNetData = processBufferUnderflow(engine, peerNetData);
-                            break;
+                case CLOSED:
+                    this.closeConnection(connection.getSocket(), engine);
+                    return false;
+
+                case BUFFER_UNDERFLOW:
+                    // the rest of the record didn't arrive yet
+                    peerNetData.compact();
+                    if (!peerNetData.hasRemaining()) {
+                        ByteBuffer replaceBuffer = increaseBufferSize(peerNetData, engine.getSession().getPacketBufferSize());
+                        peerNetData.flip();
+                        replaceBuffer.put(peerNetData);
+                        connection.setPeerNetData(replaceBuffer);
+                        buffers.release(peerNetData);
+                    }
+                    return true;
 
-                        case BUFFER_OVERFLOW:
-                            peerAppData = increaseBufferSize(peerAppData, engine.getSession().getApplicationBufferSize());
-                            break;
+                case BUFFER_OVERFLOW:
+                    connection.setPeerAppData(increaseBufferSize(peerAppData, engine.getSession().getApplicationBufferSize()));
+                    buffers.release(peerAppData);
+                    break;
 
-                        default:
-                            throw new IllegalStateException("Invalid SSL status: " + result.getStatus());
-                    }
-                }
-            } else if (bytesRead < 0) {
-                this.processEndOfStream(socket, engine);
-                return new ReadResult(bytesRead, peerAppData);
+                default:
+                    throw new IllegalStateException("Invalid SSL status: " + result.getStatus());
             }
         }
-
-        peerAppData.flip();
-        return new ReadResult(bytesRead, peerAppData);
+        peerNetData.compact();
+        return true;
     }
 
-    protected boolean executeHandshake(SocketChannel socketChannel, SSLEngine engine) throws IOException {
-        return executeHandshake(executor, socketChannel, engine);
+    protected boolean executeHandshake(SSLConnection connection) throws IOException {
+        return executeHandshake(executor, connection);
     }
 
-    protected static boolean executeHandshake(Executor executor, SocketChannel socketChannel, SSLEngine engine) throws IOException {
+    /**
+     * Runs the handshake of the connection. The records received after the handshake
+     * is finished are kept in the connection, to be read afterwards.
+     */
+    protected static boolean executeHandshake(Executor executor, SSLConnection connection) throws IOException {
 
         Logger.debug(DebugType.SSL, "Starting handshake");
-        
-        ByteBuffer appData = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize()),
-            netData = ByteBuffer.allocate(engine.getSession().getPacketBufferSize()),
-            peerAppData = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize()),
-            peerNetData = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
-
-        SSLEngineResult result;
-        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
-
-        while (status != SSLEngineResult.HandshakeStatus.FINISHED && status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
-            switch (status) {
-                case NEED_UNWRAP:
-                    if (socketChannel.read(peerNetData) < 0) {
-                        if (engine.isInboundDone() && engine.isOutboundDone())
-                            return false;
 
-                        try {
-                            engine.closeInbound();
-                        } catch(Exception e) {
-//                            Logger.error("closing inbound during handshake", e, true);
-                        }
+        long start = System.currentTimeMillis(), startNanos = System.nanoTime();
+        SocketChannel socketChannel = connection.getSocket();
+        SSLEngine engine = connection.getEngine();
 
-                        engine.closeOutbound();
-                        status = engine.getHandshakeStatus();
-                        break;
-                    }
-                    peerNetData.flip();
-                    try {
-                        result = engine.unwrap(peerNetData, peerAppData);
-                        peerNetData.compact();
-                        status = result.getHandshakeStatus();
-                    }
-                    catch (SSLException exception){
-                        Logger.error("unwrapping during handshake", exception, true);
+        ByteBuffer appData = buffers.acquireApp(engine.getSession().getApplicationBufferSize()),
+            netData = buffers.acquireNet(engine.getSession().getPacketBufferSize()),
+            peerAppData = buffers.acquireApp(engine.getSession().getApplicationBufferSize()),
+            peerNetData = connection.getPeerNetData();
 
-                        engine.closeOutbound();
-                        status = engine.getHandshakeStatus();
-                        break;
-                    }
-                    switch (result.getStatus()){
-                        case OK:
-                            break;
+        try {
+            SSLEngineResult result;
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
 
-                        case CLOSED:
-                            if (engine.isOutboundDone()) {
+            while (status != SSLEngineResult.HandshakeStatus.FINISHED && status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                switch (status) {
+                    case NEED_UNWRAP:
+                        if (socketChannel.read(peerNetData) < 0) {
+                            if (engine.isInboundDone() && engine.isOutboundDone())
                                 return false;
-                            } else {
-                                engine.closeOutbound();
-                                status = engine.getHandshakeStatus();
-                                break;
+
+                            try {
+                                engine.closeInbound();
+                            } catch(Exception e) {
+//                            Logger.error("closing inbound during handshake", e, true);
                             }
 
-                        case BUFFER_OVERFLOW:
-                            peerAppData = increaseBufferSize(peerAppData, engine.getSession().getApplicationBufferSize());
+                            engine.closeOutbound();
+                            status = engine.getHandshakeStatus();
                             break;
+                        }
+                        peerNetData.flip();
+                        try {
+                            result = engine.unwrap(peerNetData, peerAppData);
+                            peerNetData.compact();
+                            status = result.getHandshakeStatus();
+                        }
+                        catch (SSLException exception){
+                            Logger.error("unwrapping during handshake", exception, true);
 
-                        case BUFFER_UNDERFLOW:
-                            peerNetData = processBufferUnderflow(engine, peerNetData);
+                            engine.closeOutbound();
+                            status = engine.getHandshakeStatus();
                             break;
+                        }
+                        switch (result.getStatus()){
+                            case OK:
+                                break;
 
-                        default:
-                            throw new IllegalStateException("Invalid SSL status: " + result.getStatus());
-                    }
-                    break;
+                            case CLOSED:
+                                if (engine.isOutboundDone()) {
+                                    return false;
+                                } else {
+                                    engine.closeOutbound();
+                                    status = engine.getHandshakeStatus();
+                                    break;
+                                }
+
+                            case BUFFER_OVERFLOW:
+                                ByteBuffer largerAppData = increaseBufferSize(peerAppData, engine.getSession().getApplicationBufferSize());
+                                buffers.release(peerAppData);
+                                peerAppData = largerAppData;
+                                break;
 
-                case NEED_WRAP:
-                    netData.clear();
-                    try {
-                        result = engine.wrap(appData, netData);
-                        status = result.getHandshakeStatus();
-                    }
-                    catch (SSLException exception) {
-                        Logger.error("wrapping during handshake", exception, true);
+                            case BUFFER_UNDERFLOW:
+                                ByteBuffer largerNetData = processBufferUnderflow(engine, peerNetData);
+                                if (largerNetData != peerNetData) {
+                                    // the connection owns it, so it must always have the current one (to release it)
+                                    connection.setPeerNetData(largerNetData);
+                                    buffers.release(peerNetData);
+                                    peerNetData = largerNetData;
+                                }
+                                break;
 
-                        engine.closeOutbound();
-                        status = engine.getHandshakeStatus();
+                            default:
+                                throw new IllegalStateException("Invalid SSL status: " + result.getStatus());
+                        }
                         break;
-                    }
 
-                    switch (result.getStatus()) {
-                        case OK:
-                            netData.flip();
-                            while (netData.hasRemaining()){
-                                socketChannel.write(netData);
-                            }
+                    case NEED_WRAP:
+                        netData.clear();
+                        try {
+                            result = engine.wrap(appData, netData);
+                            status = result.getHandshakeStatus();
+                        }
+                        catch (SSLException exception) {
+                            Logger.error("wrapping during handshake", exception, true);
+
+                            engine.closeOutbound();
+                            status = engine.getHandshakeStatus();
                             break;
+                        }
 
-                        case CLOSED:
-                            try {
+                        switch (result.getStatus()) {
+                            case OK:
                                 netData.flip();
-                                while (netData.hasRemaining())
+                                while (netData.hasRemaining()){
                                     socketChannel.write(netData);
+                                }
+                                break;
 
-                                peerNetData.clear();
-                            }
-                            catch (Exception exception) {
-                                Logger.error("writing to socket channel", exception, false);
+                            case CLOSED:
+                                try {
+                                    netData.flip();
+                                    while (netData.hasRemaining())
+                                        socketChannel.write(netData);
 
-                                status = engine.getHandshakeStatus();
-                            }
-                            break;
+                                    peerNetData.clear();
+                                }
+                                catch (Exception exception) {
+                                    Logger.error("writing to socket channel", exception, false);
 
-                        case BUFFER_UNDERFLOW:
-                            throw new SSLException("Buffer underflow occurred after a wrap.");
+                                    status = engine.getHandshakeStatus();
+                                }
+                                break;
 
-                        case BUFFER_OVERFLOW:
-                            netData = increaseBufferSize(netData, engine.getSession().getPacketBufferSize());
-                            break;
+                            case BUFFER_UNDERFLOW:
+                                throw new SSLException("Buffer underflow occurred after a wrap.");
 
-                        default:
-                            throw new IllegalStateException("Invalid SSL status: " + result.getStatus());
-                    }
-                    break;
+                            case BUFFER_OVERFLOW:
+                                ByteBuffer largerNetData = increaseBufferSize(netData, engine.getSession().getPacketBufferSize());
+                                buffers.release(netData);
+                                netData = largerNetData;
+                                break;
+
+                            default:
+                                throw new IllegalStateException("Invalid SSL status: " + result.getStatus());
+                        }
+                        break;
 
-                case NEED_TASK:
-                    Runnable task;
-                    while ((task = engine.getDelegatedTask()) != null)
-                        executor.execute(task);
+                    case NEED_TASK:
+                        List<CompletableFuture<Void>> tasks = new ArrayList<>();
+                        Runnable task;
+                        while ((task = engine.getDelegatedTask()) != null)
+                            tasks.add(CompletableFuture.runAsync(task, executor));
+                        CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
 
-                    status = engine.getHandshakeStatus();
-                    break;
+                        status = engine.getHandshakeStatus();
+                        break;
 
-                default:
-                    throw new IllegalStateException("Invalid SSL status: " + status);
+                    default:
+                        throw new IllegalStateException("Invalid SSL status: " + status);
+                }
             }
-        }
 
-        Logger.debug(DebugType.SSL, "Finalized handshake");
+            // a resumed session was created by a previous handshake
+            recordHandshake(engine, start, System.nanoTime() - startNanos);
 
-        return true;
+            return true;
+        } finally {
+            buffers.release(appData);
+            buffers.release(netData);
+            buffers.release(peerAppData);
+        }
     }
 
 
+    /**
+     * @return a new buffer, of the same kind as the given one, with at least the given capacity
+     */
     protected static ByteBuffer increaseBufferSize(ByteBuffer buffer, int capacity) {
-        if (capacity > buffer.capacity()) {
-            return ByteBuffer.allocate(capacity);
-        }
-        return ByteBuffer.allocate(buffer.capacity() * 2);
+        int newCapacity = capacity > buffer.capacity() ? capacity : buffer.capacity() * 2;
+        return buffer.isDirect() ? buffers.acquireNet(newCapacity) : buffers.acquireApp(newCapacity);
     }
 
+
     protected static ByteBuffer processBufferUnderflow(SSLEngine engine, ByteBuffer buffer) {
         if (engine.getSession().getPacketBufferSize() < buffer.limit())
             return buffer;
@@ -308,7 +540,12 @@ public abstract class SSLPeer {
 
     protected static void closeConnection(Executor executor, SocketChannel socketChannel, SSLEngine engine) throws IOException  {
         engine.closeOutbound();
-        executeHandshake(executor, socketChannel, engine);
+        SSLConnection connection = new SSLConnection(socketChannel, engine);
+        try {
+            executeHandshake(executor, connection);
+        } finally {
+            connection.release();
+        }
         socketChannel.close();
     }
 
@@ -1,10 +1,10 @@
 package sslengine;
 
 import messages.Message;
-import messages.MessageParser;
 import server.Router;
 import utils.Logger;
 import utils.Logger.DebugType;
+import utils.Threads;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
@@ -12,13 +12,15 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.*;
 import java.nio.channels.spi.SelectorProvider;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
 
 public class SSLServer extends SSLPeer {
 
-    private boolean available;
+    private volatile boolean available;
 
     private final SSLContext context;
 
@@ -30,19 +32,29 @@ public class SSLServer extends SSLPeer {
 
     private final int port;
 
-    private final ThreadPoolExecutor threadpool;
+    private final ExecutorService threadpool;
 
+    /* The connections are spread across these, each reading its connections in its own thread */
+    private final Reactor[] reactors;
+
+    private int nextReactor = 0;
+
+    /**
+     * Uses as many reactors as processors, unless the peer is started with -Dreactors=<n>
+     */
     public SSLServer(String address, int port, Router router) throws Exception {
-        this("TLS", address, port, router);
+        this("TLS", address, port, router, Integer.parseInt(System.getProperty("reactors", String.valueOf(Runtime.getRuntime().availableProcessors()))));
     }
 
-    public SSLServer(String protocol, String address, int port, Router router) throws Exception {
+    /**
+     * @param reactorCount amount of threads that read from the accepted connections
+     */
+    public SSLServer(String protocol, String address, int port, Router router, int reactorCount) throws Exception {
         this.address = address;
         this.port = port;
         this.router = router;
 
-        this.context = SSLContext.getInstance(protocol);
-        initContext(context);
+        this.context = getContext(protocol);
 
         this.selector = SelectorProvider.provider().openSelector();
 
@@ -52,7 +64,15 @@ public class SSLServer extends SSLPeer {
         socket.register(this.selector, SelectionKey.OP_ACCEPT);
 
         this.available = true;
-        this.threadpool = (ThreadPoolExecutor) Executors.newFixedThreadPool(25);
+        this.threadpool = Threads.newHandlerPool("server-handler", 25);
+
+        this.reactors = new Reactor[Math.max(1, reactorCount)];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor();
+            Thread thread = new Thread(reactors[i], "server-io-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
     }
 
     public String getAddress() {
@@ -63,9 +83,12 @@ public class SSLServer extends SSLPeer {
         return port;
     }
 
+    /**
+     * Accepts connections until the server is stopped, handing each one to a reactor
+     */
     public void start() throws IOException {
 
-        Logger.debug(DebugType.SSL, "Server ready!");
+        Logger.debug(DebugType.SSL, "Server ready! (" + reactors.length + " reactors)");
 
         while (this.available){
             this.selector.select();
@@ -80,61 +103,6 @@ public class SSLServer extends SSLPeer {
 
                     if (key.isAcceptable())
                         this.accept(key);
-
-                    else if (key.isReadable()) 
-                    {
-                        SocketChannel socket = (SocketChannel) key.channel();
-                        SSLEngine engine = (SSLEngine) key.attachment();
-
-                        String clientAddress = socket.getRemoteAddress().toString();
-
-                        Thread.sleep(75);
-
-                        ReadResult msg;
-                        try 
-                        {
-                            msg = read(socket, engine);
-                        } 
-                        catch (Exception e) 
-                        {
-                            Logger.error("reading in server", e, e.getMessage() != null && !e.getMessage().trim().equals("Tag mismatch!"));
-                            continue;
-                        }
-
-                        threadpool.execute(() -> {
-                            try 
-                            {
-                                if (msg.getBytesRead() > 0) {
-
-                                    try 
-                                    {   
-                                        Message message;
-                                        try {
-                                            message = MessageParser.parse(msg.getData().array(), msg.getBytesRead());
-                                        } catch(Exception e) {
-//                                            Logger.error("Couldn't parse message!");
-                                            return;
-                                        }
-                                        
-                                        try {
-                                            router.handle(message, socket, engine, clientAddress);
-                                        }
-                                        catch (ClosedChannelException e) {
-                                            Logger.error("The channel was closed! The message was " + message.getMessageType() + " Probably because peer didn't care about the answer.");
-                                        }
-                                    }
-                                    catch (Exception e)
-                                    {
-                                        Logger.error("handling server request", e, true);
-                                    }
-                                }
-                            }
-                            catch (Exception e)
-                            {
-                                Logger.error("processing key", e, true);
-                            }
-                        });
-                    }
                 } 
                 catch (Exception e) 
                 {
@@ -149,28 +117,206 @@ public class SSLServer extends SSLPeer {
 
     public void stop(){
         this.available = false;
-        executor.shutdown();
         threadpool.shutdown();
+        for (Reactor reactor : reactors) reactor.stop();
         selector.wakeup();
     }
 
+    /**
+     * Reads what the client sent and hands every message that was completely received to the router
+     */
+    private void read(SelectionKey key) throws IOException {
+        SSLConnection connection = (SSLConnection) key.attachment();
+        SocketChannel socket = connection.getSocket();
+
+        try
+        {
+            if (read(connection) < 0) {
+                key.cancel();
+                connection.release();
+                return;
+            }
+        }
+        catch (Exception e)
+        {
+            Logger.error("reading in server", e, e.getMessage() != null && !e.getMessage().trim().equals("Tag mismatch!"));
+            key.cancel();
+            socket.close();
+            connection.release();
+            return;
+        }
+
+        String clientAddress = socket.getRemoteAddress().toString();
+
+        Message message;
+        while (available && (message = connection.getDecoder().poll()) != null) {
+            Message received = message;
+            threadpool.execute(() -> {
+                try
+                {
+                    router.handle(received, connection, clientAddress);
+                }
+                catch (ClosedChannelException e)
+                {
+                    Logger.error("The channel was closed! The message was " + received.getMessageType() + " Probably because peer didn't care about the answer.");
+                }
+                catch (Exception e)
+                {
+                    Logger.error("handling server request", e, true);
+                }
+            });
+        }
+    }
+
+    /**
+     * Writes a response to a client. It is queued in the connection, so the caller never waits for the socket.
+     */
+    public void write(SSLConnection connection, Message message) throws Exception {
+        enqueue(connection, Collections.singletonList(message.getBuffers()));
+    }
+
+    private void flush(SelectionKey key) {
+        SSLConnection connection = (SSLConnection) key.attachment();
+        try {
+            connection.flush();
+        } catch (IOException e) {
+            Logger.error("writing to client", e, false);
+            key.cancel();
+            try {
+                connection.getSocket().close();
+            } catch (IOException ignored) {}
+            connection.release();
+        }
+    }
+
     public void accept(SelectionKey key) throws IOException {
         Logger.debug(DebugType.SSL, "New connection on hold!");
 
         SocketChannel socket = ((ServerSocketChannel) key.channel()).accept();
+        if (socket == null) return;
         socket.configureBlocking(false);
 
-        SSLEngine engine = context.createSSLEngine();
-        engine.setUseClientMode(false);
+        Reactor reactor = reactors[nextReactor];
+        nextReactor = (nextReactor + 1) % reactors.length;
+        reactor.execute(() -> reactor.handshake(socket));
+    }
 
-        engine.beginHandshake();
-        
-        if (this.executeHandshake(socket, engine))
-            socket.register(selector, SelectionKey.OP_READ, engine);
-        else {
-            socket.close();
-            Logger.error("Couldn't connect due to a handshake failure!");  // TODO maybe throw exception?
+    /**
+     * Event loop that owns some of the server's connections: it runs their handshakes and reads what they send.
+     * While a connection is handshaking, its key's attachment is the Handshake; afterwards, it is the SSLConnection.
+     */
+    private class Reactor implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+
+        private Reactor() throws IOException {
+            this.selector = SelectorProvider.provider().openSelector();
+        }
+
+        private void execute(Runnable task) {
+            pendingTasks.add(task);
+            selector.wakeup();
+        }
+
+        private void handshake(SocketChannel socket) {
+            try {
+                SSLEngine engine = context.createSSLEngine();
+                engine.setUseClientMode(false);
+
+                engine.beginHandshake();
+
+                SSLConnection connection = new SSLConnection(socket, engine);
+                SelectionKey key = socket.register(selector, SelectionKey.OP_READ);
+                key.attach(new Handshake(connection, key, executor));
+                step(key);
+            } catch (Exception e) {
+                Logger.error("accepting connection", e, false);
+                try {
+                    socket.close();
+                } catch (IOException ignored) {}
+            }
+        }
+
+        /**
+         * Advances the handshake of the key's connection, starting to read from it once the handshake is finished
+         */
+        private void step(SelectionKey key) {
+            Handshake handshake = (Handshake) key.attachment();
+            SSLConnection connection = handshake.getConnection();
+
+            Handshake.Status status;
+            try {
+                status = handshake.step(() -> execute(() -> { if (key.isValid()) step(key); }));
+            } catch (Exception e) {
+                Logger.error("handshaking with client", e, false);
+                status = Handshake.Status.FAILED;
+            }
+
+            switch (status) {
+                case WAITING:
+                    return;
+
+                case FINISHED:
+                    handshake.release();
+                    key.attach(connection);
+                    key.interestOps(SelectionKey.OP_READ);
+                    try {
+                        connection.setKey(key);
+                        // the client may have sent messages right after the handshake
+                        if (connection.hasPendingData()) read(key);
+                    } catch (IOException e) {
+                        Logger.error("reading after handshake", e, false);
+                    }
+                    return;
+
+                case FAILED:
+                    // (clients may connect and close without a handshake)
+                    Logger.debug(DebugType.SSL, "Couldn't connect due to a handshake failure!");
+                    key.cancel();
+                    try {
+                        connection.getSocket().close();
+                    } catch (IOException ignored) {}
+                    handshake.release();
+                    connection.release();
+            }
+        }
+
+        private void stop() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+
+                    Runnable task;
+                    while ((task = pendingTasks.poll()) != null) task.run();
+
+                    Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                    while (selectedKeys.hasNext()) {
+                        SelectionKey key = selectedKeys.next();
+                        selectedKeys.remove();
+
+                        if (!key.isValid()) continue;
+
+                        if (key.attachment() instanceof Handshake) step(key);
+                        else {
+                            if (key.isWritable()) flush(key);
+                            if (key.isValid() && key.isReadable()) read(key);
+                        }
+                    }
+                } catch (Exception e) {
+                    Logger.error("running server reactor", e, true);
+                }
+            }
+
+            try {
+                selector.close();
+            } catch (IOException ignored) {}
         }
     }
 }
-
@@ -0,0 +1,53 @@
+package sslengine.queue;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Messages waiting to be sent to the same destination, in the order they were pushed.
+ * At most one thread drains a lane at a time, so the messages to a destination are written sequentially.
+ * The lane is bounded: when it is full, producers wait for it to be drained.
+ */
+public class MessageLane {
+    private final Queue<MessageAction> actions = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    private final Semaphore space;
+
+    public MessageLane(int capacity) {
+        this.space = new Semaphore(capacity);
+    }
+
+    /**
+     * Adds the action to the lane, waiting for space if it is full
+     * @return false if there wasn't space in time
+     */
+    public boolean offer(MessageAction action, long timeout) throws InterruptedException {
+        if (!space.tryAcquire(timeout, TimeUnit.MILLISECONDS)) return false;
+        actions.add(action);
+        return true;
+    }
+
+    public MessageAction poll() {
+        MessageAction action = actions.poll();
+        if (action != null) space.release();
+        return action;
+    }
+
+    public boolean isEmpty() {
+        return actions.isEmpty();
+    }
+
+    /**
+     * @return true if the caller is now the one draining the lane (it wasn't being drained)
+     */
+    public boolean startDraining() {
+        return draining.compareAndSet(false, true);
+    }
+
+    public void stopDraining() {
+        draining.set(false);
+    }
+}
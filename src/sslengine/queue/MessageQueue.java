@@ -5,86 +5,185 @@ import configuration.PeerConfiguration;
 import messages.Message;
 import sslengine.SSLClient;
 import utils.Logger;
+import utils.Threads;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.util.concurrent.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Consumer;
 
 /**
- * This class assures that writes are sequential
+ * This class assures that writes are sequential: the messages to each destination go through their own lane,
+ * which is written as soon as it is free. Lanes of different destinations are written in parallel.
  */
 public class MessageQueue {
-    private final ConcurrentLinkedQueue<MessageAction> queue = new ConcurrentLinkedQueue<>();
-    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
-    private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(10);
+    private final Map<InetSocketAddress, MessageLane> lanes = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Threads.newHandlerPool("queue-lane", 16);
+    private final ExecutorService scheduler = Threads.newHandlerPool("queue", 10);
     private PeerConfiguration configuration = null;
 
-    public MessageQueue() {
-        executor.scheduleWithFixedDelay(this::sweep, 500, 500, TimeUnit.MILLISECONDS);
-    }
+    private static final int MAX_BATCH_MESSAGES = 16, MAX_BATCH_BYTES = 128 * 1024;
+    private static final int LANE_CAPACITY = 256;
+    private static final long LANE_TIMEOUT = 10000;  // time a producer waits for space in a full lane
+    private static final long LINGER_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
 
     public void setConfiguration(PeerConfiguration configuration) {
         this.configuration = configuration;
     }
 
-    public void sweep() {
-        Logger.debug(Logger.DebugType.QUEUE, "Sweeping...");
-        while (!queue.isEmpty()) {
-            MessageAction action = queue.poll();
-            Logger.debug(Logger.DebugType.QUEUE, "Doing action: " + action);
-            try {
-                SSLClient.send(scheduler, action.getClient(), action.getMessage(), action.getOnComplete(), action.wantsReply());
-            } catch(Exception e) {
-                Logger.error("handling message queue sweep for " + action, e, true);
+    private void add(MessageAction action) {
+        if (executor.isShutdown()) {
+            complete(action, null);
+            return;
+        }
+
+        MessageLane lane = lanes.computeIfAbsent(action.getClient().getInetSocketAddress(), (InetSocketAddress address) -> new MessageLane(LANE_CAPACITY));
+
+        boolean added;
+        try {
+            added = lane.offer(action, LANE_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            added = false;
+        }
+
+        if (!added) {
+            Logger.error("Queue to " + action.getClient().getInetSocketAddress() + " is full, dropping " + action);
+            complete(action, null);
+            return;
+        }
+        if (lane.startDraining()) executor.execute(() -> drain(lane));
+    }
+
+    private void drain(MessageLane lane) {
+        do {
+            List<MessageAction> batch;
+            while (!(batch = nextBatch(lane)).isEmpty()) {
+                Logger.debug(Logger.DebugType.QUEUE, "Doing " + batch.size() + " action(s): " + batch);
+                send(batch);
+            }
+            lane.stopDraining();
+            // a message may have been added after the lane was seen empty, but before it stopped being drained
+        } while (!lane.isEmpty() && lane.startDraining());
+    }
+
+    /**
+     * Takes the messages waiting in the lane, up to the size of a batch. When several messages were waiting
+     * (a burst, like the parts of a file), it lingers a little for the rest of them before giving up on filling the batch.
+     */
+    private List<MessageAction> nextBatch(MessageLane lane) {
+        List<MessageAction> batch = new ArrayList<>();
+        int bytes = 0;
+        boolean lingered = false;
+        while (batch.size() < MAX_BATCH_MESSAGES && bytes < MAX_BATCH_BYTES) {
+            MessageAction action = lane.poll();
+            if (action == null) {
+                if (batch.size() < 2 || lingered) break;
+                lingered = true;
+                LockSupport.parkNanos(LINGER_NANOS);
+                continue;
             }
+            batch.add(action);
+            bytes += action.getMessage().getBodyLength();
         }
-        Logger.debug(Logger.DebugType.QUEUE, "Sweep complete!");
+        return batch;
     }
 
-    private void push(InetSocketAddress address, Message message, SSLClient client, Consumer<Message> onComplete) {
-        queue.add(new MessageAction(message, client, (Message reply) -> {
-            if (onComplete != null) onComplete.accept(reply);
+    /**
+     * Writes the messages of each connection at once
+     */
+    private void send(List<MessageAction> batch) {
+        Map<SSLClient, List<MessageAction>> byClient = new LinkedHashMap<>();
+        for (MessageAction action : batch)
+            byClient.computeIfAbsent(action.getClient(), (SSLClient client) -> new ArrayList<>()).add(action);
+
+        for (Map.Entry<SSLClient, List<MessageAction>> entry : byClient.entrySet()) {
             try {
-                client.shutdown();
-            } catch (Exception e) {
-                Logger.error("handling message queue on complete for message " + message + " to address " + address, e, true);
+                SSLClient.send(entry.getKey(), entry.getValue(), this::complete);
+            } catch(Exception e) {
+                for (MessageAction action : entry.getValue()) failed(action, e);
             }
-        }, onComplete != null));
+        }
+    }
+
+    private void failed(MessageAction action, Exception e) {
+        SSLClient client = action.getClient();
+        SSLClient.pool.invalidate(client);
+
+        // a pooled connection may have been closed by the other peer in the meantime
+        // (the new connection is acquired outside of the lane, which must never block waiting for the pool)
+        if (client.wasUsed()) {
+            Logger.debug(Logger.DebugType.QUEUE, "Pooled connection was stale, retrying with a new one: " + action);
+            scheduler.execute(() -> {
+                try {
+                    SSLClient newClient = SSLClient.pool.acquire(client.getInetSocketAddress());
+                    add(new MessageAction(action.getMessage(), newClient, action.getOnComplete(), action.wantsReply()));
+                } catch(Exception e1) {
+                    Logger.error("reconnecting to " + client.getInetSocketAddress() + " for " + action, e1, false);
+                    if (action.getOnComplete() != null) action.getOnComplete().accept(null);
+                }
+            });
+            return;
+        }
+
+        Logger.error("sending queued " + action, e, true);
+        if (action.getOnComplete() != null) action.getOnComplete().accept(null);
+    }
+
+    /**
+     * Gives the connection back to the pool and lets the sender know of the reply
+     */
+    private void complete(MessageAction action, Message reply) {
+        // a reply that arrives after the timeout is dropped by its request id, so the connection can still be used
+        SSLClient.pool.release(action.getClient());
+
+        if (action.getOnComplete() != null) action.getOnComplete().accept(reply);
     }
 
     public void push(ChordNode node, Message message, Consumer<Message> onComplete) throws Exception {
-        SSLClient client = new SSLClient(node.getInetSocketAddress().getAddress().getHostAddress(), node.getInetSocketAddress().getPort());
+        SSLClient client;
         try {
-            client.connect();
+            client = SSLClient.pool.acquire(node.getInetSocketAddress());
         } catch (IOException e) {
             Logger.error("connecting to peer in SSLClient.send", e, false);
             if (onComplete != null) onComplete.accept(null);
             if (configuration != null) configuration.getChord().peerIsDown(node);
             else Logger.error("Configuration is null when pushing to queue a ChordNode");
             return;
+        } catch (Exception e) {
+            Logger.error("getting connection to " + node, e, false);
+            if (onComplete != null) onComplete.accept(null);
+            return;
         }
 
-        push(node.getInetSocketAddress(), message, client, onComplete);
+        add(new MessageAction(message, client, onComplete, onComplete != null));
     }
 
     public void push(InetSocketAddress address, Message message, Consumer<Message> onComplete) throws Exception {
         if (configuration != null) {
             Logger.error("Sending message without peer is down handling when configuration is not null!");
         }
-        SSLClient client = new SSLClient(address.getAddress().getHostAddress(), address.getPort());
+        SSLClient client;
         try {
-            client.connect();
-        } catch (IOException e) {
+            client = SSLClient.pool.acquire(address);
+        } catch (Exception e) {
             Logger.error("connecting to peer in SSLClient.send", e, false);
             if (onComplete != null) onComplete.accept(null);
             return;
         }
 
-        push(address, message, client, onComplete);
+        add(new MessageAction(message, client, onComplete, onComplete != null));
     }
 
     public void destroy() {
         executor.shutdown();
+        scheduler.shutdown();
     }
 }
@@ -47,6 +47,9 @@ public class PeerState implements Serializable {
 
     private int maximumSpaceAvailable = -1;
 
+    /* Set while a batch of changes is applied by the thread, so that the state is only written once, at the end */
+    private static final ThreadLocal<Boolean> inBatch = ThreadLocal.withInitial(() -> false);
+
     public PeerState(String dir) {
         this.dir = dir;
     }
@@ -182,6 +185,24 @@ public class PeerState implements Serializable {
         }
     }
 
+    /**
+     * Applies several changes to the file pointers and backed up files atomically (no other change to them
+     * happens in the meantime) and writes the state once, when they are all done
+     */
+    public void batch(Runnable changes) {
+        synchronized (filePointers) {
+            synchronized (othersFiles) {
+                inBatch.set(true);
+                try {
+                    changes.run();
+                } finally {
+                    inBatch.set(false);
+                }
+                writeState();
+            }
+        }
+    }
+
     public static PeerState read(String dir) throws IOException, ClassNotFoundException {
         File f = new File(dir + "/" + stateFileName);
         if (!f.exists()) {
@@ -216,6 +237,7 @@ public class PeerState implements Serializable {
     }
 
     private void writeState() {
+        if (inBatch.get()) return;
         try {
             this.write();
         }
@@ -0,0 +1,95 @@
+package utils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of the bodies of the messages that carry file data.
+ * The level is chosen per file by sampling its first bytes: content that is already compressed (jpeg, zip, ...)
+ * has an entropy close to 8 bits per byte and is sent as is.
+ * Can be turned off by starting the peer with -Dcompression=off
+ */
+public class Compression {
+    public static final String PROPERTY = "compression";
+    public static final int NONE = Integer.MIN_VALUE;
+
+    private static final boolean enabled = !"off".equalsIgnoreCase(System.getProperty(PROPERTY, "adaptive"));
+
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    private static final double INCOMPRESSIBLE_ENTROPY = 7.5;  // bits per byte
+    private static final double REDUNDANT_ENTROPY = 6;
+
+    /**
+     * @return Deflater level to compress the file's parts with, or NONE if they shouldn't be compressed
+     */
+    public static int chooseLevel(byte[] data) {
+        if (!enabled || data.length == 0) return NONE;
+
+        double entropy = entropy(data, Math.min(data.length, SAMPLE_SIZE));
+        int level;
+        if (entropy >= INCOMPRESSIBLE_ENTROPY) level = NONE;
+        else if (entropy < REDUNDANT_ENTROPY) level = Deflater.DEFAULT_COMPRESSION;  // text and the like: worth the extra work
+        else level = Deflater.BEST_SPEED;
+
+        Logger.debug(Logger.DebugType.FILETRANSFER, String.format("Sampled entropy of %.2f bits/byte, compression level %s", entropy, level == NONE ? "none" : level));
+        return level;
+    }
+
+    /**
+     * @return Shannon entropy (bits per byte) of the first length bytes of data
+     */
+    private static double entropy(byte[] data, int length) {
+        int[] counts = new int[256];
+        for (int i = 0; i < length; i++) counts[data[i] & 0xFF]++;
+
+        double entropy = 0;
+        for (int count : counts) {
+            if (count == 0) continue;
+            double probability = (double) count / length;
+            entropy -= probability * Math.log(probability) / Math.log(2);
+        }
+        return entropy;
+    }
+
+    /**
+     * @param deflater reused between parts, already set to the desired level
+     * @return the compressed bytes, or null if they aren't smaller than the original ones
+     */
+    public static byte[] deflate(Deflater deflater, ByteBuffer data) {
+        int size = data.remaining();
+        deflater.reset();
+        deflater.setInput(data.duplicate());
+        deflater.finish();
+
+        byte[] buffer = new byte[size];
+        int length = 0;
+        while (!deflater.finished() && length < buffer.length)
+            length += deflater.deflate(buffer, length, buffer.length - length);
+
+        if (!deflater.finished() || length >= size) return null;
+        byte[] compressed = new byte[length];
+        System.arraycopy(buffer, 0, compressed, 0, length);
+        return compressed;
+    }
+
+    public static byte[] inflate(ByteBuffer data) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream(data.remaining() * 4);
+            inflater.setInput(data);
+            byte[] buffer = new byte[16 * 1024];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new DataFormatException("Compressed body is truncated");
+                output.write(buffer, 0, length);
+            }
+            return output.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -13,6 +13,7 @@ public class Logger {
         MESSAGE,
         CHORD,
         QUEUE,
+        POOL,
         BACKUP,
         FILEBUCKET,
         FILETRANSFER,
@@ -29,6 +30,7 @@ public class Logger {
 //        setActive(DebugType.MESSAGE);
 //        setActive(DebugType.CHORD);
 //        setActive(DebugType.QUEUE);
+//        setActive(DebugType.POOL);
         setActive(DebugType.BACKUP);
 //        setActive(DebugType.FILEBUCKET);
 //        setActive(DebugType.FILETRANSFER);
@@ -0,0 +1,83 @@
+package utils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the thread pools that run handlers which may block (waiting for replies, lookups, ...).
+ * When the peer is started with -Dthreads=virtual (and the JVM supports them) every task runs in its own
+ * virtual thread, so blocking is cheap and nested blocking calls can't exhaust the pool.
+ * Otherwise, fixed pools of platform threads are used.
+ */
+public class Threads {
+    public static final String PROPERTY = "threads";
+
+    private static final Method newVirtualThreadPerTaskExecutor = findVirtualThreadFactory();
+    private static final boolean virtual = "virtual".equalsIgnoreCase(System.getProperty(PROPERTY, "platform"));
+
+    static {
+        if (virtual && newVirtualThreadPerTaskExecutor == null)
+            Logger.error("Virtual threads were requested but aren't supported by this JVM (" + System.getProperty("java.version") + "). Using platform threads.");
+    }
+
+    private static Method findVirtualThreadFactory() {
+        try {
+            // only exists from Java 21 onwards
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    public static boolean virtualThreadsAvailable() {
+        return newVirtualThreadPerTaskExecutor != null;
+    }
+
+    public static boolean usingVirtualThreads() {
+        return virtual && virtualThreadsAvailable();
+    }
+
+    /**
+     * @param name prefix of the names of the pool's threads
+     * @param platformThreads size of the pool when platform threads are used
+     */
+    public static ExecutorService newHandlerPool(String name, int platformThreads) {
+        return usingVirtualThreads() ? newVirtualPool() : newPlatformPool(name, platformThreads);
+    }
+
+    public static ExecutorService newPlatformPool(String name, int threads) {
+        AtomicInteger count = new AtomicInteger(0);
+        ThreadFactory factory = (Runnable runnable) -> new Thread(runnable, name + "-" + count.getAndIncrement());
+        return Executors.newFixedThreadPool(threads, factory);
+    }
+
+    /**
+     * Pool that creates threads as needed (or virtual threads, if they are being used), for callbacks that may block
+     * waiting for others that run in the same pool. Its threads are daemons, and end after a minute without work.
+     */
+    public static ExecutorService newElasticPool(String name) {
+        if (usingVirtualThreads()) return newVirtualPool();
+
+        AtomicInteger count = new AtomicInteger(0);
+        return Executors.newCachedThreadPool((Runnable runnable) -> {
+            Thread thread = new Thread(runnable, name + "-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @throws UnsupportedOperationException if the JVM doesn't support virtual threads
+     */
+    public static ExecutorService newVirtualPool() {
+        if (newVirtualThreadPerTaskExecutor == null) throw new UnsupportedOperationException("Virtual threads aren't supported by this JVM.");
+        try {
+            return (ExecutorService) newVirtualThreadPerTaskExecutor.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Couldn't create virtual thread executor", e);
+        }
+    }
+}